@@ -289,6 +289,46 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
         return (AttributeClassObserver) numericClassObserver.copy();
     }
 
+    protected void commitSplitEvent(Node newSplit, AttributeSplitSuggestion splitDecision) {
+        TreeEvents.Split event = new TreeEvents.Split();
+        if (event.shouldCommit()) {
+            fillEvent(event, depthOf(newSplit));
+            event.attribute = splitDecision.splitTest.getAttsTestDependsOn()[0];
+            event.merit = splitDecision.merit;
+            event.commit();
+        }
+    }
+
+    protected void fillEvent(TreeEvents.StructureEvent event, int depth) {
+        event.fill(getClass().getSimpleName(), depth, this.decisionNodeCount,
+                this.activeLeafNodeCount, this.inactiveLeafNodeCount, this.numInstances);
+    }
+
+    /**
+     * Depth of target below the root, or -1 if it is not in the tree. Parent
+     * links are not kept for every node, so this searches from the root; it
+     * is only called while a flight recording wants the event.
+     */
+    protected int depthOf(Node target) {
+        return depthOf(this.treeRoot, target, 0);
+    }
+
+    private static int depthOf(Node node, Node target, int depth) {
+        if (node == target) {
+            return depth;
+        }
+        if (node instanceof SplitNode) {
+            SplitNode split = (SplitNode) node;
+            for (int i = 0; i < split.numChildren(); i++) {
+                int found = depthOf(split.getChild(i), target, depth + 1);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+        }
+        return -1;
+    }
+
     public void enforceTrackerLimit() {
         if ((this.inactiveLeafNodeCount > 0)
                 || ((this.activeLeafNodeCount * this.activeLeafByteSizeEstimate + this.inactiveLeafNodeCount
@@ -557,6 +597,7 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
                     } else {
                         parent.setChild(parentIndex, newSplit);
                     }
+                    commitSplitEvent(newSplit, splitDecision);
                     int ttnodes = this.inactiveLeafNodeCount + this.decisionNodeCount + this.activeLeafNodeCount;
                     if (ttnodes > this.maxNodeSize)
                         this.maxNodeSize = ttnodes;
@@ -908,12 +949,21 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
         }
 
         public void killSubtree(EFDT ht) {
+            killChildren(ht);
+            TreeEvents.KillSubtree event = new TreeEvents.KillSubtree();
+            if (event.shouldCommit()) {
+                ht.fillEvent(event, ht.depthOf(this));
+                event.commit();
+            }
+        }
+
+        protected void killChildren(EFDT ht) {
             for (Node child : this.children) {
                 if (child != null) {
 
                     //Recursive delete of SplitNodes
                     if (child instanceof SplitNode) {
-                        ((EFDTSplitNode) child).killSubtree(ht);
+                        ((EFDTSplitNode) child).killChildren(ht);
                     } else if (child instanceof ActiveLearningNode) {
                         ht.activeLeafNodeCount--;
                     } else if (child instanceof InactiveLearningNode) {
@@ -1057,7 +1107,8 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
             if (deltaG > hoeffdingBound
                     || (hoeffdingBound < tieThreshold && deltaG > tieThreshold / 2)) {
 
-                System.err.println(numInstances);
+                TreeEvents.Resplit resplitEvent = new TreeEvents.Resplit();
+                int depth = resplitEvent.shouldCommit() ? depthOf(node) : -1;
 
                 AttributeSplitSuggestion splitDecision = bestSuggestion;
 
@@ -1130,6 +1181,13 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
                     }
                 }
 
+                if (resplitEvent.shouldCommit()) {
+                    fillEvent(resplitEvent, depth);
+                    resplitEvent.attribute = splitDecision.splitTest == null ? -1
+                            : splitDecision.splitTest.getAttsTestDependsOn()[0];
+                    resplitEvent.merit = splitDecision.merit;
+                    resplitEvent.commit();
+                }
             }
             int ttnodes = this.mainInstance.inactiveLeafNodeCount + this.mainInstance.decisionNodeCount + this.mainInstance.activeLeafNodeCount;
             if (ttnodes != nodesAtBegin) {
@@ -1522,7 +1580,7 @@ public class EFDT extends AbstractClassifier implements MultiClassClassifier {
                         } else {
                             parent.setChild(parentIndex, newSplit);
                         }
-
+                        commitSplitEvent(newSplit, splitDecision);
                     }
 
                     // manage memory
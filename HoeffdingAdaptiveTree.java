@@ -205,6 +205,7 @@ public class HoeffdingAdaptiveTree extends HoeffdingTree {
                 this.alternateTree = ht.newLearningNode();
                 //this.alternateTree.isAlternateTree = true;
                 ht.alternateTrees++;
+                ht.commitStructureEvent(new TreeEvents.AlternateCreated(), this);
             } // Check condition to replace tree
             else if (this.alternateTree != null && ((NewNode) this.alternateTree).isNullError() == false) {
                 if (this.getErrorWidth() > 300 && ((NewNode) this.alternateTree).getErrorWidth() > 300) {
@@ -227,6 +228,7 @@ public class HoeffdingAdaptiveTree extends HoeffdingTree {
                             ht.treeRoot = ((AdaSplitNode) ht.treeRoot).alternateTree;
                         }
                         ht.switchedAlternateTrees++;
+                        ht.commitStructureEvent(new TreeEvents.AlternateSwitched(), this.alternateTree);
                     } else if (Bound < altErrorRate - oldErrorRate) {
                         // Erase alternate tree
                         if (this.alternateTree instanceof ActiveLearningNode) {
@@ -239,6 +241,7 @@ public class HoeffdingAdaptiveTree extends HoeffdingTree {
                             ((AdaSplitNode) this.alternateTree).killTreeChilds(ht);
                         }
                         ht.prunedAlternateTrees++;
+                        ht.commitStructureEvent(new TreeEvents.AlternatePruned(), this);
                     }
                 }
             }
@@ -455,6 +458,39 @@ public class HoeffdingAdaptiveTree extends HoeffdingTree {
     protected int averageCount = 0;
     protected int maxNodeSize = 0;
 
+    protected void commitStructureEvent(TreeEvents.StructureEvent event, Node node) {
+        if (event.shouldCommit()) {
+            event.fill(getClass().getSimpleName(), depthOf(this.treeRoot, node, 0),
+                    this.decisionNodeCount, this.activeLeafNodeCount,
+                    this.inactiveLeafNodeCount, (long) this.trainingWeightSeenByModel);
+            event.commit();
+        }
+    }
+
+    // There are no parent links, so the depth of a node is found by searching
+    // from the root, alternate trees included; only done while recording.
+    private static int depthOf(Node node, Node target, int depth) {
+        if (node == target) {
+            return depth;
+        }
+        if (node instanceof AdaSplitNode) {
+            AdaSplitNode split = (AdaSplitNode) node;
+            if (split.alternateTree != null) {
+                int found = depthOf(split.alternateTree, target, depth);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+            for (int i = 0; i < split.numChildren(); i++) {
+                int found = depthOf(split.getChild(i), target, depth + 1);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+        }
+        return -1;
+    }
+
     @Override
     protected LearningNode newLearningNode(double[] initialClassObservations) {
         // IDEA: to choose different learning nodes depending on predictionOption
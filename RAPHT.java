@@ -20,27 +20,62 @@
 package moa.classifiers.trees;
 
 import com.github.javacliparser.*;
+import com.yahoo.labs.samoa.instances.Attribute;
 import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
 import moa.AbstractMOAObject;
 import moa.capabilities.CapabilitiesHandler;
 import moa.capabilities.Capability;
 import moa.capabilities.ImmutableCapabilities;
 import moa.classifiers.AbstractClassifier;
 import moa.classifiers.MultiClassClassifier;
-import moa.classifiers.bayes.NaiveBayes;
 import moa.classifiers.core.AttributeSplitSuggestion;
 import moa.classifiers.core.attributeclassobservers.AttributeClassObserver;
 import moa.classifiers.core.attributeclassobservers.DiscreteAttributeClassObserver;
+import moa.classifiers.core.attributeclassobservers.GaussianNumericAttributeClassObserver;
+import moa.classifiers.core.attributeclassobservers.NominalAttributeClassObserver;
 import moa.classifiers.core.attributeclassobservers.NullAttributeClassObserver;
 import moa.classifiers.core.attributeclassobservers.NumericAttributeClassObserver;
 import moa.classifiers.core.conditionaltests.InstanceConditionalTest;
+import moa.classifiers.core.conditionaltests.NominalAttributeBinaryTest;
+import moa.classifiers.core.conditionaltests.NominalAttributeMultiwayTest;
+import moa.classifiers.core.conditionaltests.NumericAttributeBinaryTest;
+import moa.classifiers.core.splitcriteria.InfoGainSplitCriterion;
 import moa.classifiers.core.splitcriteria.SplitCriterion;
 import moa.core.StringUtils;
 import moa.core.*;
+import moa.options.AbstractOptionHandler;
 import moa.options.ClassOption;
+import moa.tasks.TaskMonitor;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Hoeffding Tree or VFDT.
@@ -90,11 +125,18 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
                                                                  CapabilitiesHandler {
 
     private static final long serialVersionUID = 1L;
-    private int instancesSeen = 0;
+    protected long instancesSeen = 0;
+    // Node.lastAccess and the timestamps of the prune checks are int offsets from this epoch
+    private long accessEpoch = 0;
+    // the epoch moves up to the clock once the offsets reach this, long before an int overflows
+    protected static final int ACCESS_REBASE_LIMIT = 1 << 29;
+    // longest idle interval a node is kept for, and the floor of shifted offsets, so a clamped node is stale at any depth
+    protected static final int ACCESS_IDLE_LIMIT = 1 << 30;
     private int pruneInterval = 0;
     private int pruneThreshold = 0;
     private boolean LRUPrunningActive = false;
     private boolean subtreeRaisingActive = false;
+    private boolean expiryIndexActive = false;
     protected long evaluationTime = 0;
 
     @Override
@@ -110,6 +152,12 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
             'd', "Nominal estimator to use.", DiscreteAttributeClassObserver.class,
             "NominalAttributeClassObserver");
 
+    public FlagOption sparseLeavesOption = new FlagOption("sparseLeaves", 'Z',
+            "Observe only the non-zero entries of each instance and create leaf observers on first use. Zeros are added to the observers before splits and Naive Bayes votes.");
+
+    public FlagOption nominalSlabOption = new FlagOption("nominalSlab", 'N',
+            "Store the nominal attribute counts of each leaf in one primitive array instead of an observer per attribute. Only used with NominalAttributeClassObserver.");
+
     public IntOption gracePeriodOption = new IntOption(
             "gracePeriod",
             'g',
@@ -139,6 +187,9 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
     public StringOption fileOutputBinSplitOption = new StringOption("fileOutputBinSplit", 'O',
             "Output the bin that the split has used.", "binused.txt");
 
+    public FlagOption outputSplitDetailsOption = new FlagOption("outputSplitDetails", 'D',
+            "Also output the attribute, merit, depth and instance count of each split after its bin.");
+
     public FlagOption removePoorAttsOption = new FlagOption("removePoorAtts",
             'r', "Disable poor attributes.");
 
@@ -161,333 +212,3776 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
     public FlagOption subtreeRaisingOption = new FlagOption("subtreeRaising", 'R',
             "enable subtree-raising when pruning");
 
-    public static class FoundNode {
-
-        public Node node;
+    public FlagOption adaptivePruneWindowOption = new FlagOption("adaptivePruneWindow", 'V',
+            "Adjust the prune window online, starting from PruneWindow: longer while checks rarely prune and cost CPU, shorter while they keep pruning a growing tree.");
 
-        public SplitNode parent;
+    public IntOption minPruneWindowOption = new IntOption("minPruneWindow",
+            'y',
+            "The shortest prune window the adaptive mode may choose.",
+            100, 1, Integer.MAX_VALUE);
 
-        public int parentBranch;
+    public IntOption maxPruneWindowOption = new IntOption("maxPruneWindow",
+            'Y',
+            "The longest prune window the adaptive mode may choose.",
+            100000, 1, Integer.MAX_VALUE);
 
-        public FoundNode(Node node, SplitNode parent, int parentBranch) {
-            this.node = node;
-            this.parent = parent;
-            this.parentBranch = parentBranch;
-        }
-    }
+    public FlagOption expiryIndexOption = new FlagOption("expiryIndex", 'x',
+            "Index nodes by LRU deadline so prune checks only visit expired nodes.");
 
-    public static class Node extends AbstractMOAObject {
+    public IntOption pruneBudgetOption = new IntOption("pruneBudget",
+            'B',
+            "The number of nodes the LRU check may visit per instance, 0 checks the whole tree at once.",
+            0, 0, Integer.MAX_VALUE);
 
-        private static final long serialVersionUID = 1L;
+    public FlagOption trainLatencyOption = new FlagOption("trainLatency", 'L',
+            "Track the latency percentiles of each training call.");
 
-        protected DoubleVector observedClassDistribution;
+    public IntOption phaseTimingOption = new IntOption("phaseTiming",
+            'S',
+            "Time routing, observer updates, pruning and NB votes for 1 in this many instances, and every split attempt. 0 disables the timers.",
+            0, 0, Integer.MAX_VALUE);
 
-        protected int lastAccess = -1;
+    public IntOption snapshotPeriodOption = new IntOption("snapshotPeriod",
+            'P',
+            "Predict with a compiled snapshot of the tree, recompiled after structural changes or every this many instances. 0 predicts with the live tree. Under concurrentPrediction, the period at which leaf statistics are republished instead: 0 republishes class counts after every call and Naive Bayes leaves once they saw gracePeriod more weight.",
+            0, 0, Integer.MAX_VALUE);
 
-        public Node(double[] classObservations) {
-            this.observedClassDistribution = new DoubleVector(classObservations);
-        }
+    public FlagOption concurrentPredictionOption = new FlagOption("concurrentPrediction", 'C',
+            "Publish an immutable copy of the tree after each training call, so other threads can predict without locking. Leaf statistics are republished every snapshotPeriod instances, or as described for snapshotPeriod when it is 0, structural changes at once.");
 
-        public int calcByteSize() {
-            return (int) (SizeOf.sizeOf(this) + SizeOf.fullSizeOf(this.observedClassDistribution));
-        }
+    public FlagOption concurrentTrainingOption = new FlagOption("concurrentTraining", 'M',
+            "Allow several threads to train at once. Leaves are locked individually; splits, prunes and publications take the tree exclusively.");
 
-        public int calcByteSizeIncludingSubtree() {
-            return calcByteSize();
-        }
+    public IntOption parallelSplitThresholdOption = new IntOption("parallelSplitThreshold",
+            'j',
+            "Evaluate the attributes of a split attempt in parallel on the common ForkJoin pool when the leaf has at least this many attributes. 0 always evaluates sequentially.",
+            0, 0, Integer.MAX_VALUE);
 
-        public boolean isLeaf() {
-            return true;
-        }
+    public FlagOption asyncSplitOption = new FlagOption("asyncSplit", 'a',
+            "Evaluate split attempts on a background worker and apply the decision at the next training call.");
 
-        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
-                int parentBranch) {
-            return new FoundNode(this, parent, parentBranch);
-        }
+    public FlagOption agentByteSizeOption = new FlagOption("agentByteSize", 'A',
+            "Measure the model size with the sizeofag agent instead of estimating it from its layout. On recent JVMs the agent does not look inside JDK collections and undercounts, so the byte budget evicts late. Ignored when the agent is not loaded.");
 
-        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
-                                              int parentBranch, int TimeStamp) {
-            return new FoundNode(this, parent, parentBranch);
-        }
+    public IntOption maxByteSizeOption = new IntOption("maxByteSize", 'm',
+            "Maximum memory consumed by the tree, stale subtrees are evicted to stay below it. 0 disables the limit.",
+            0, 0, Integer.MAX_VALUE);
 
-        public double[] getObservedClassDistribution() {
-            return this.observedClassDistribution.getArrayCopy();
-        }
+    public IntOption nodePoolOption = new IntOption("nodePool", 'E',
+            "Keep up to this many learning nodes of pruned subtrees and split leaves, with their observers, and reset them into new leaves instead of allocating. Not used with concurrentTraining. 0 disables.",
+            0, 0, Integer.MAX_VALUE);
 
-        public double[] getClassVotes(Instance inst, RAPHT ht) {
-            return this.observedClassDistribution.getArrayCopy();
+    public FlagOption offHeapStatisticsOption = new FlagOption("offHeapStatistics", 'F',
+            "Keep the nominal counts of leaves, in a nominal slab, and the bin weights of HistogramNumericObserver leaves in direct memory managed by the tree, freed when leaves leave it. Needs NominalAttributeClassObserver or HistogramNumericObserver; not allowed with concurrentTraining.");
+
+    /**
+     * Append-only log of split events. Records go to a bounded ring buffer
+     * and a background thread writes them through one FileChannel, so the
+     * training thread never does file I/O; it only waits when the buffer is
+     * full. Each line starts with the bin index, optionally followed by the
+     * attribute, merit, depth and instance count, tab separated. Pending
+     * records are written on close, which also runs at JVM shutdown; records
+     * made after it, or while waiting for room when it happens, are dropped.
+     */
+    public static class SplitEventLog implements Closeable {
+
+        public static final int DEFAULT_CAPACITY = 4096;
+
+        protected static final long FLUSH_INTERVAL_MS = 1000;
+
+        protected final boolean details;
+
+        protected final int[] binIndex;
+        protected final int[] attIndex;
+        protected final double[] merit;
+        protected final int[] depth;
+        protected final long[] instancesSeen;
+
+        protected int head = 0;
+        protected int count = 0;
+        protected boolean closed = false;
+        protected IOException failure;
+
+        protected final FileChannel channel;
+        protected final Object writeLock = new Object();
+        protected final Thread flusher;
+        protected final Thread shutdownHook;
+
+        public SplitEventLog(String file, boolean details, int capacity) {
+            this.details = details;
+            this.binIndex = new int[capacity];
+            this.attIndex = new int[capacity];
+            this.merit = new double[capacity];
+            this.depth = new int[capacity];
+            this.instancesSeen = new long[capacity];
+            try {
+                this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "RAPHT-split-log");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+            this.shutdownHook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(this.shutdownHook);
         }
 
-        public boolean observedClassDistributionIsPure() {
-            return this.observedClassDistribution.numNonZeroEntries() < 2;
+        public synchronized void record(int bin, int att, double splitMerit, int splitDepth, long seen) {
+            if (this.failure != null) {
+                throw new RuntimeException(this.failure);
+            }
+            while (this.count == this.binIndex.length && !this.closed) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (this.closed) {
+                return; // nothing writes the buffer anymore
+            }
+            int slot = (this.head + this.count) % this.binIndex.length;
+            this.binIndex[slot] = bin;
+            this.attIndex[slot] = att;
+            this.merit[slot] = splitMerit;
+            this.depth[slot] = splitDepth;
+            this.instancesSeen[slot] = seen;
+            this.count++;
+            if (this.count >= this.binIndex.length / 2) {
+                notifyAll();
+            }
         }
 
-        public void describeSubtree(RAPHT ht, StringBuilder out,
-                                    int indent) {
-            StringUtils.appendIndented(out, indent, "Leaf ");
-            out.append(ht.getClassNameString());
-            out.append(" = ");
-            out.append(ht.getClassLabelString(this.observedClassDistribution.maxIndex()));
-            out.append(" weights: ");
-            this.observedClassDistribution.getSingleLineDescription(out,
-                    ht.treeRoot.observedClassDistribution.numValues());
-            StringUtils.appendNewline(out);
+        /**
+         * Formats and empties the buffer. Called with the monitor held.
+         */
+        protected String drain() {
+            StringBuilder out = new StringBuilder(this.count * (this.details ? 48 : 4));
+            for (int i = 0; i < this.count; i++) {
+                int slot = (this.head + i) % this.binIndex.length;
+                out.append(this.binIndex[slot]);
+                if (this.details) {
+                    out.append('\t').append(this.attIndex[slot])
+                            .append('\t').append(this.merit[slot])
+                            .append('\t').append(this.depth[slot])
+                            .append('\t').append(this.instancesSeen[slot]);
+                }
+                out.append('\n');
+            }
+            this.head = (this.head + this.count) % this.binIndex.length;
+            this.count = 0;
+            notifyAll();
+            return out.toString();
         }
 
-        public int subtreeDepth() {
-            return 0;
+        /**
+         * Writes every buffered record. Draining and writing share one lock
+         * so lines reach the file in the order they were recorded.
+         */
+        public void flush() {
+            synchronized (this.writeLock) {
+                String data;
+                synchronized (this) {
+                    data = drain();
+                }
+                if (data.isEmpty()) {
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+                try {
+                    while (buffer.hasRemaining()) {
+                        this.channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    synchronized (this) {
+                        this.failure = e;
+                    }
+                }
+            }
         }
 
-        public double calculatePromise() {
-            double totalSeen = this.observedClassDistribution.sumOfValues();
-            return totalSeen > 0.0 ? (totalSeen - this.observedClassDistribution.getValue(this.observedClassDistribution.maxIndex()))
-                    : 0.0;
+        protected void flushLoop() {
+            while (true) {
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+                    if (this.count < this.binIndex.length / 2) {
+                        try {
+                            wait(FLUSH_INTERVAL_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                flush();
+            }
         }
 
         @Override
-        public void getDescription(StringBuilder sb, int indent) {
-            describeSubtree(null, sb, indent);
+        public void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                notifyAll();
+            }
+            flush();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down, this is the hook itself
+            }
         }
     }
 
-    public static class SplitNode extends Node {
-
-        private static final long serialVersionUID = 1L;
-
-        protected InstanceConditionalTest splitTest;
-
-        protected AutoExpandVector<Node> children;
+    /**
+     * Estimates heap sizes from object layout. The model's sizes come from
+     * here unless agentByteSize is set, since the sizeofag agent does not see
+     * inside JDK collections on recent JVMs. Assumes a 64-bit HotSpot with compressed references: 12 byte
+     * object headers, 16 byte array headers, 4 byte references and 8 byte
+     * alignment. Class distributions and the standard observers are sized
+     * from their array lengths; the fixed part of an observer (its options)
+     * is walked once per observer class and cached.
+     */
+    public static class ByteSizeEstimator {
+
+        protected static final int OBJECT_HEADER = 12;
+        protected static final int ARRAY_HEADER = 16;
+        protected static final int REFERENCE = 4;
+        protected static final int ALIGNMENT = 8;
+
+        private static final Map<Class<?>, Long> shallowSizes = new ConcurrentHashMap<>();
+        private static final Map<Class<?>, Field[]> referenceFields = new ConcurrentHashMap<>();
+        private static final Map<Class<?>, Long> observerFixedSizes = new ConcurrentHashMap<>();
+        private static final Field[] OPAQUE = new Field[0];
+
+        private static Field gaussianMin;
+        private static Field gaussianMax;
+        private static Field gaussianEstimators;
+
+        public static long align(long size) {
+            return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
 
-        @Override
-        public int calcByteSize() {
-            return super.calcByteSize()
-                    + (int) (SizeOf.sizeOf(this.children) + SizeOf.fullSizeOf(this.splitTest));
+        public static long arraySize(int length, int elementSize) {
+            return align(ARRAY_HEADER + (long) length * elementSize);
         }
 
-        @Override
-        public int calcByteSizeIncludingSubtree() {
-            int byteSize = calcByteSize();
-            for (Node child : this.children) {
-                if (child != null) {
-                    byteSize += child.calcByteSizeIncludingSubtree();
+        public static long shallowSize(Class<?> type) {
+            Long size = shallowSizes.get(type);
+            if (size == null) {
+                long fields = 0;
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        if (!Modifier.isStatic(field.getModifiers())) {
+                            fields += fieldSize(field.getType());
+                        }
+                    }
                 }
+                size = align(OBJECT_HEADER + fields);
+                shallowSizes.put(type, size);
             }
-            return byteSize;
-        }
-
-        public SplitNode(InstanceConditionalTest splitTest,
-                double[] classObservations, int size) {
-            super(classObservations);
-            this.splitTest = splitTest;
-            this.children = new AutoExpandVector<>(size);
-        }
-        
-        public SplitNode(InstanceConditionalTest splitTest,
-                double[] classObservations) {
-            super(classObservations);
-            this.splitTest = splitTest;
-            this.children = new AutoExpandVector<>();
+            return size;
         }
 
-
-        public int numChildren() {
-            return this.children.size();
+        private static int fieldSize(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            } else if (type == int.class || type == float.class) {
+                return 4;
+            } else if (type == short.class || type == char.class) {
+                return 2;
+            } else if (type == byte.class || type == boolean.class) {
+                return 1;
+            }
+            return REFERENCE;
         }
 
-        public void setChild(int index, Node child) {
-            if ((this.splitTest.maxBranches() >= 0)
-                    && (index >= this.splitTest.maxBranches())) {
-                throw new IndexOutOfBoundsException();
+        public static long sizeOf(DoubleVector vector) {
+            if (vector == null) {
+                return 0;
             }
-            this.children.set(index, child);
+            return shallowSize(vector.getClass()) + arraySize(vector.getArrayRef().length, 8);
         }
 
-        public Node getChild(int index) {
-            return this.children.get(index);
+        public static long sizeOf(List<?> list) {
+            if (list == null) {
+                return 0;
+            }
+            return shallowSize(list.getClass()) + arraySize(list.size(), REFERENCE);
         }
 
-        public int instanceChildIndex(Instance inst) {
-            return this.splitTest.branchForInstance(inst);
+        public static long sizeOf(AttributeClassObserver observer) {
+            if (observer == null) {
+                return 0;
+            }
+            if (observer.getClass() == NominalSlabObserver.class) {
+                // the slab is counted once by its leaf
+                return shallowSize(NominalSlabObserver.class);
+            }
+            if (observer.getClass() == HistogramNumericObserver.class) {
+                // the options are shared with the prototype
+                return shallowSize(HistogramNumericObserver.class) + variableObserverSize(observer);
+            }
+            long variable = variableObserverSize(observer);
+            if (variable < 0) {
+                return graphSize(observer);
+            }
+            Long fixed = observerFixedSizes.get(observer.getClass());
+            if (fixed == null) {
+                fixed = graphSize(observer) - variable;
+                observerFixedSizes.put(observer.getClass(), fixed);
+            }
+            return fixed + variable;
         }
 
-        @Override
-        public boolean isLeaf() {
-            return false;
+        /**
+         * The part of an observer that grows with the data, or -1 when the
+         * observer type is not known.
+         */
+        protected static long variableObserverSize(AttributeClassObserver observer) {
+            if (observer.getClass() == NullAttributeClassObserver.class) {
+                return 0;
+            }
+            if (observer.getClass() == HistogramNumericObserver.class) {
+                HistogramNumericObserver histogram = (HistogramNumericObserver) observer;
+                long size = 0;
+                if (histogram.weights != null) {
+                    size += arraySize(histogram.weights.length, 8) + arraySize(histogram.classWeights.length, 8);
+                } else if (histogram.block >= 0) {
+                    // off the heap, counted as the arrays it replaces so limits mean the same
+                    size += arraySize(histogram.blockLength - histogram.numClasses, 8)
+                            + arraySize(histogram.numClasses, 8);
+                }
+                if (histogram.pendingValues != null) {
+                    int length = histogram.pendingValues.length;
+                    size += 2 * arraySize(length, 8) + arraySize(length, 4);
+                }
+                return size;
+            }
+            if (observer.getClass() == NominalAttributeClassObserver.class) {
+                AutoExpandVector<DoubleVector> perClass = ((NominalAttributeClassObserver) observer).attValDistPerClass;
+                long size = sizeOf(perClass);
+                for (DoubleVector dist : perClass) {
+                    size += sizeOf(dist);
+                }
+                return size;
+            }
+            if (observer.getClass() == GaussianNumericAttributeClassObserver.class) {
+                try {
+                    List<?> perClass = gaussianEstimators(observer);
+                    long size = sizeOf((DoubleVector) gaussianMin.get(observer))
+                            + sizeOf((DoubleVector) gaussianMax.get(observer))
+                            + sizeOf(perClass);
+                    for (Object estimator : perClass) {
+                        if (estimator != null) {
+                            size += shallowSize(estimator.getClass());
+                        }
+                    }
+                    return size;
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    return -1;
+                }
+            }
+            return -1;
         }
 
-        @Override
-        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
-                int parentBranch) {
-            int childIndex = instanceChildIndex(inst);
-            if (childIndex >= 0) {
-                Node child = getChild(childIndex);
-                if (child != null) {
-                    return child.filterInstanceToLeaf(inst, this, childIndex);
+        /**
+         * Whether observing attVal with classVal may change what sizeOf
+         * returns for observer, checked before it is observed. True for
+         * observer types that are not known.
+         */
+        public static boolean mayGrow(AttributeClassObserver observer, double attVal, int classVal) {
+            Class<?> type = observer.getClass();
+            if (type == NullAttributeClassObserver.class || type == NominalSlabObserver.class) {
+                // the slab is allocated for every value up front
+                return false;
+            }
+            if (Utils.isMissingValue(attVal)) {
+                // only counted, in fields that are already there
+                return type != NominalAttributeClassObserver.class
+                        && type != GaussianNumericAttributeClassObserver.class
+                        && type != HistogramNumericObserver.class;
+            }
+            if (type == HistogramNumericObserver.class) {
+                HistogramNumericObserver histogram = (HistogramNumericObserver) observer;
+                return histogram.width == 0.0 || classVal >= histogram.numClasses;
+            }
+            if (type == NominalAttributeClassObserver.class) {
+                DoubleVector counts = ((NominalAttributeClassObserver) observer).attValDistPerClass.get(classVal);
+                return counts == null || (int) attVal >= counts.numValues();
+            }
+            if (type == GaussianNumericAttributeClassObserver.class) {
+                try {
+                    List<?> perClass = gaussianEstimators(observer);
+                    return classVal >= perClass.size() || perClass.get(classVal) == null;
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    return true;
                 }
-                return new FoundNode(null, this, childIndex);
             }
-            return new FoundNode(this, parent, parentBranch);
+            return true;
         }
 
-        @Override
-        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
-                                              int parentBranch, int TimeStamp) {
-            int childIndex = instanceChildIndex(inst);
-            this.lastAccess = TimeStamp;
-            if (childIndex >= 0) {
-                Node child = getChild(childIndex);
-                if (child != null) {
-                    return child.filterInstanceToLeaf(inst, this, childIndex, TimeStamp);
-                }
-                return new FoundNode(null, this, childIndex);
+        private static List<?> gaussianEstimators(AttributeClassObserver observer) throws ReflectiveOperationException {
+            if (gaussianEstimators == null) {
+                Field min = GaussianNumericAttributeClassObserver.class.getDeclaredField("minValueObservedPerClass");
+                Field max = GaussianNumericAttributeClassObserver.class.getDeclaredField("maxValueObservedPerClass");
+                Field estimators = GaussianNumericAttributeClassObserver.class.getDeclaredField("attValDistPerClass");
+                min.setAccessible(true);
+                max.setAccessible(true);
+                estimators.setAccessible(true);
+                gaussianMin = min;
+                gaussianMax = max;
+                gaussianEstimators = estimators;
             }
-            return new FoundNode(this, parent, parentBranch);
+            return (List<?>) gaussianEstimators.get(observer);
         }
 
-        @Override
-        public void describeSubtree(RAPHT ht, StringBuilder out,
-                                    int indent) {
-            for (int branch = 0; branch < numChildren(); branch++) {
-                Node child = getChild(branch);
-                if (child != null) {
-                    StringUtils.appendIndented(out, indent, "if ");
-                    out.append(this.splitTest.describeConditionForBranch(branch,
-                            ht.getModelContext()));
-                    out.append(": ");
-                    StringUtils.appendNewline(out);
-                    child.describeSubtree(ht, out, indent + 2);
+        /**
+         * Size of everything reachable from root. Fields of classes that do
+         * not open their internals (the JDK's) are not followed; strings and
+         * collections among them are sized from their length.
+         */
+        public static long graphSize(Object root) {
+            if (root == null) {
+                return 0;
+            }
+            Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            Deque<Object> pending = new ArrayDeque<>();
+            pending.push(root);
+            long size = 0;
+            while (!pending.isEmpty()) {
+                Object o = pending.pop();
+                if (o instanceof Class || !visited.add(o)) {
+                    continue;
+                }
+                if (o instanceof String && o == ((String) o).intern()) {
+                    // shared literal, not owned by the model; SizeOf skips these too
+                    continue;
+                }
+                Class<?> type = o.getClass();
+                if (type.isArray()) {
+                    int length = Array.getLength(o);
+                    Class<?> component = type.getComponentType();
+                    size += arraySize(length, fieldSize(component));
+                    if (!component.isPrimitive()) {
+                        for (int i = 0; i < length; i++) {
+                            Object element = Array.get(o, i);
+                            if (element != null) {
+                                pending.push(element);
+                            }
+                        }
+                    }
+                    continue;
+                }
+                size += shallowSize(type);
+                Field[] fields = referenceFields(type);
+                if (fields == OPAQUE) {
+                    if (o instanceof String) {
+                        size += arraySize(((String) o).length(), 1);
+                    } else if (o instanceof Collection) {
+                        size += arraySize(((Collection<?>) o).size(), REFERENCE);
+                        for (Object element : (Collection<?>) o) {
+                            if (element != null) {
+                                pending.push(element);
+                            }
+                        }
+                    } else if (o instanceof Map) {
+                        size += arraySize(((Map<?, ?>) o).size(), REFERENCE);
+                        for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                            size += align(OBJECT_HEADER + 3 * REFERENCE + 4);
+                            if (entry.getKey() != null) {
+                                pending.push(entry.getKey());
+                            }
+                            if (entry.getValue() != null) {
+                                pending.push(entry.getValue());
+                            }
+                        }
+                    }
+                    continue;
+                }
+                for (Field field : fields) {
+                    try {
+                        Object value = field.get(o);
+                        if (value != null) {
+                            pending.push(value);
+                        }
+                    } catch (IllegalAccessException e) {
+                        // counted as a reference only
+                    }
                 }
             }
+            return size;
         }
 
-        @Override
-        public int subtreeDepth() {
-            int maxChildDepth = 0;
-            for (Node child : this.children) {
-                if (child != null) {
-                    int depth = child.subtreeDepth();
-                    if (depth > maxChildDepth) {
-                        maxChildDepth = depth;
+        private static Field[] referenceFields(Class<?> type) {
+            Field[] fields = referenceFields.get(type);
+            if (fields == null) {
+                List<Field> accessible = new ArrayList<>();
+                try {
+                    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                        for (Field field : c.getDeclaredFields()) {
+                            if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                                field.setAccessible(true);
+                                accessible.add(field);
+                            }
+                        }
                     }
+                    fields = accessible.toArray(new Field[accessible.size()]);
+                } catch (RuntimeException e) {
+                    // module encapsulation, typically java.*
+                    fields = OPAQUE;
                 }
+                referenceFields.put(type, fields);
             }
-            return maxChildDepth + 1;
+            return fields;
         }
     }
 
-    public static abstract class LearningNode extends Node {
+    public static class FoundNode {
 
-        private static final long serialVersionUID = 1L;
+        public Node node;
 
-        public LearningNode(double[] initialClassObservations) {
-            super(initialClassObservations);
-        }
+        public SplitNode parent;
 
-        public abstract void learnFromInstance(Instance inst, RAPHT ht);
+        public int parentBranch;
+
+        public FoundNode(Node node, SplitNode parent, int parentBranch) {
+            this.node = node;
+            this.parent = parent;
+            this.parentBranch = parentBranch;
+        }
     }
 
-    public static class InactiveLearningNode extends LearningNode {
+    public static class ExpiryEntry implements Comparable<ExpiryEntry>, Serializable {
 
         private static final long serialVersionUID = 1L;
 
-        public InactiveLearningNode(double[] initialClassObservations) {
-            super(initialClassObservations);
+        protected Node node;
+
+        protected final double deadline;
+
+        public ExpiryEntry(Node node, double deadline) {
+            this.node = node;
+            this.deadline = deadline;
         }
 
         @Override
-        public void learnFromInstance(Instance inst, RAPHT ht) {
-            this.observedClassDistribution.addToValue((int) inst.classValue(),
-                    inst.weight());
+        public int compareTo(ExpiryEntry other) {
+            return Double.compare(this.deadline, other.deadline);
         }
     }
 
-    public static class ActiveLearningNode extends LearningNode {
+    /**
+     * Log-linear histogram of nanosecond durations, 16 sub-buckets per power
+     * of two, so percentiles are within ~6% of the recorded value.
+     */
+    public static class LatencyHistogram implements Serializable {
 
         private static final long serialVersionUID = 1L;
 
-        protected double weightSeenAtLastSplitEvaluation;
+        protected long[] counts = new long[64 * 16];
 
-        protected AutoExpandVector<AttributeClassObserver> attributeObservers = new AutoExpandVector<>();
+        protected long total = 0;
+
+        protected long max = 0;
+
+        protected long sum = 0;
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            this.counts[bucketOf(nanos)]++;
+            this.total++;
+            this.sum += nanos;
+            if (nanos > this.max) {
+                this.max = nanos;
+            }
+        }
+
+        public long getCount() {
+            return this.total;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public double getMean() {
+            return this.total > 0 ? (double) this.sum / this.total : 0.0;
+        }
+
+        public long percentile(double q) {
+            long rank = (long) Math.ceil(q * this.total);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBoundOf(i), this.max);
+                }
+            }
+            return 0;
+        }
+
+        public void reset() {
+            Arrays.fill(this.counts, 0);
+            this.total = 0;
+            this.max = 0;
+            this.sum = 0;
+        }
+
+        protected static int bucketOf(long v) {
+            if (v < 16) {
+                return (int) v;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            return (msb - 3) * 16 + (int) ((v >>> (msb - 4)) & 15);
+        }
+
+        protected static long upperBoundOf(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int shift = bucket / 16 - 1;
+            return ((16L + bucket % 16 + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Immutable, array based copy of a tree for prediction. Nodes are stored
+     * in pre-order as parallel arrays, split tests of the standard MOA types
+     * are evaluated inline and leaf votes are copied into one array. Split
+     * tests of other types, and leaves whose votes depend on the instance
+     * (Naive Bayes), are delegated to the original objects.
+     */
+    public static class FlatTree implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected static final byte LEAF = 0;
+        protected static final byte NUMERIC_LE = 1;
+        protected static final byte NUMERIC_LT = 2;
+        protected static final byte NOMINAL_BINARY = 3;
+        protected static final byte NOMINAL_MULTIWAY = 4;
+        protected static final byte GENERIC = 5;
+
+        protected byte[] kind;
+        protected int[] attIndex;
+        protected double[] attValue;
+        protected int[] firstChild;
+        protected int[] numChildren;
+        protected int[] children;
+        protected int[] votesOffset;
+        protected int[] votesLength;
+        protected double[] votes;
+        protected InstanceConditionalTest[] genericTests;
+        protected Node[] delegates;
+
+        protected int size = 0;
+        protected int childCount = 0;
+        protected int votesCount = 0;
+
+        public FlatTree(Node root, int numNodes) {
+            int capacity = Math.max(numNodes, 1);
+            this.kind = new byte[capacity];
+            this.attIndex = new int[capacity];
+            this.attValue = new double[capacity];
+            this.firstChild = new int[capacity];
+            this.numChildren = new int[capacity];
+            this.children = new int[capacity];
+            this.votesOffset = new int[capacity];
+            this.votesLength = new int[capacity];
+            this.votes = new double[4 * capacity];
+            this.genericTests = new InstanceConditionalTest[capacity];
+            this.delegates = new Node[capacity];
+            add(root);
+        }
+
+        public int numNodes() {
+            return this.size;
+        }
+
+        private int add(Node node) {
+            int id = this.size++;
+            if (id == this.kind.length) {
+                grow();
+            }
+            if (node instanceof SplitNode) {
+                SplitNode split = (SplitNode) node;
+                compileTest(id, split.splitTest);
+                int n = split.numChildren();
+                this.numChildren[id] = n;
+                this.firstChild[id] = this.childCount;
+                this.childCount += n;
+                if (this.childCount > this.children.length) {
+                    this.children = Arrays.copyOf(this.children, Math.max(this.childCount, 2 * this.children.length));
+                }
+                for (int i = 0; i < n; i++) {
+                    Node child = split.getChild(i);
+                    int childId = child != null ? add(child) : -1;
+                    this.children[this.firstChild[id] + i] = childId;
+                }
+            } else {
+                this.kind[id] = LEAF;
+            }
+            if (node instanceof LearningNodeNB) {
+                this.delegates[id] = node;
+                this.votesOffset[id] = -1;
+            } else {
+                double[] dist = node.observedClassDistribution.getArrayRef();
+                int length = node.observedClassDistribution.numValues();
+                if (this.votesCount + length > this.votes.length) {
+                    this.votes = Arrays.copyOf(this.votes, Math.max(this.votesCount + length, 2 * this.votes.length));
+                }
+                System.arraycopy(dist, 0, this.votes, this.votesCount, length);
+                this.votesOffset[id] = this.votesCount;
+                this.votesLength[id] = length;
+                this.votesCount += length;
+            }
+            return id;
+        }
+
+        private void compileTest(int id, InstanceConditionalTest test) {
+            try {
+                if (test.getClass() == NumericAttributeBinaryTest.class) {
+                    initTestFields();
+                    this.kind[id] = numericEqualsPasses.getBoolean(test) ? NUMERIC_LE : NUMERIC_LT;
+                    this.attIndex[id] = test.getAttsTestDependsOn()[0];
+                    this.attValue[id] = ((NumericAttributeBinaryTest) test).getSplitValue();
+                    return;
+                } else if (test.getClass() == NominalAttributeBinaryTest.class) {
+                    this.kind[id] = NOMINAL_BINARY;
+                    this.attIndex[id] = test.getAttsTestDependsOn()[0];
+                    initTestFields();
+                    this.attValue[id] = nominalBinaryAttValue.getInt(test);
+                    return;
+                } else if (test.getClass() == NominalAttributeMultiwayTest.class) {
+                    this.kind[id] = NOMINAL_MULTIWAY;
+                    this.attIndex[id] = test.getAttsTestDependsOn()[0];
+                    return;
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // fall through to the test object itself
+            }
+            this.kind[id] = GENERIC;
+            this.genericTests[id] = test;
+        }
+
+        // the test fields MOA has no getter for, looked up once
+        private static Field numericEqualsPasses;
+        private static Field nominalBinaryAttValue;
+
+        private static synchronized void initTestFields() throws ReflectiveOperationException {
+            if (nominalBinaryAttValue != null) {
+                return;
+            }
+            Field equalsPasses = NumericAttributeBinaryTest.class.getDeclaredField("equalsPassesTest");
+            equalsPasses.setAccessible(true);
+            Field attValue = NominalAttributeBinaryTest.class.getDeclaredField("attValue");
+            attValue.setAccessible(true);
+            numericEqualsPasses = equalsPasses;
+            nominalBinaryAttValue = attValue;
+        }
+
+        private void grow() {
+            int capacity = 2 * this.kind.length;
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.attIndex = Arrays.copyOf(this.attIndex, capacity);
+            this.attValue = Arrays.copyOf(this.attValue, capacity);
+            this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+            this.numChildren = Arrays.copyOf(this.numChildren, capacity);
+            this.votesOffset = Arrays.copyOf(this.votesOffset, capacity);
+            this.votesLength = Arrays.copyOf(this.votesLength, capacity);
+            this.genericTests = Arrays.copyOf(this.genericTests, capacity);
+            this.delegates = Arrays.copyOf(this.delegates, capacity);
+        }
+
+        /**
+         * Same branch rules as the branchForInstance of each test type,
+         * including how each of them reads missing values.
+         */
+        public double[] getVotesForInstance(Instance inst, RAPHT ht) {
+            int node = 0;
+            while (true) {
+                int branch;
+                int att = this.attIndex[node];
+                switch (this.kind[node]) {
+                    case NUMERIC_LE:
+                        branch = inst.isMissing(att) ? -1
+                                : (inst.valueInputAttribute(att) <= this.attValue[node] ? 0 : 1);
+                        break;
+                    case NUMERIC_LT:
+                        branch = inst.isMissing(att) ? -1
+                                : (inst.valueInputAttribute(att) < this.attValue[node] ? 0 : 1);
+                        break;
+                    case NOMINAL_BINARY:
+                        att = att < inst.classIndex() ? att : att + 1;
+                        branch = inst.isMissing(att) ? -1
+                                : ((int) inst.value(att) == (int) this.attValue[node] ? 0 : 1);
+                        break;
+                    case NOMINAL_MULTIWAY:
+                        branch = inst.isMissing(att) ? -1 : (int) inst.value(att);
+                        break;
+                    case GENERIC:
+                        branch = this.genericTests[node].branchForInstance(inst);
+                        break;
+                    default:
+                        return votesOf(node, inst, ht);
+                }
+                if (branch < 0 || branch >= this.numChildren[node]) {
+                    return votesOf(node, inst, ht);
+                }
+                int child = this.children[this.firstChild[node] + branch];
+                if (child < 0) {
+                    return votesOf(node, inst, ht);
+                }
+                node = child;
+            }
+        }
+
+        private double[] votesOf(int node, Instance inst, RAPHT ht) {
+            int offset = this.votesOffset[node];
+            if (offset < 0) {
+                return this.delegates[node].getClassVotes(inst, ht);
+            }
+            return Arrays.copyOfRange(this.votes, offset, offset + this.votesLength[node]);
+        }
+    }
+
+    /**
+     * Versioned binary checkpoint of a RAPHT model. The file holds the
+     * option string, the stream header, the learner's counters and clock,
+     * and the tree in pre-order: split tests, class distributions, lastAccess
+     * stamps and observer state. Split tests and observers of the standard
+     * MOA types are written field by field; other types fall back to Java
+     * serialization of that one object. Writing streams through a buffer,
+     * reading maps the file, so neither holds a serialized copy of the model.
+     * Derived state (the expiry index, parents, depths and snapshots) is
+     * rebuilt on restore; latency histograms start empty. Sparse leaves are
+     * settled before they are written.
+     */
+    public static class Checkpoint {
+
+        protected static final long MAGIC = 0x5241504854434B50L; // "RAPHTCKP"
+        // 4 lays the OBSERVER_HISTOGRAM weights out bin by bin, 3 adds the
+        // OBSERVER_SLAB and OBSERVER_HISTOGRAM tags, 2 the sparse class weights
+        // of active leaves; 1 to 3 are still read. New tags bump it
+        protected static final int FORMAT_VERSION = 4;
+
+        protected static final byte NODE_NULL = 0;
+        protected static final byte NODE_SPLIT = 1;
+        protected static final byte NODE_INACTIVE = 2;
+        protected static final byte NODE_ACTIVE = 3;
+        protected static final byte NODE_NB = 4;
+        protected static final byte NODE_NB_ADAPTIVE = 5;
+
+        protected static final byte TEST_SERIALIZED = 0;
+        protected static final byte TEST_NUMERIC = 1;
+        protected static final byte TEST_NOMINAL_BINARY = 2;
+        protected static final byte TEST_NOMINAL_MULTIWAY = 3;
+
+        protected static final byte OBSERVER_NONE = 0;
+        protected static final byte OBSERVER_SERIALIZED = 1;
+        protected static final byte OBSERVER_GAUSSIAN = 2;
+        protected static final byte OBSERVER_NOMINAL = 3;
+        protected static final byte OBSERVER_NULL = 4;
+        // one attribute's block of the leaf's NominalSlab
+        protected static final byte OBSERVER_SLAB = 5;
+        protected static final byte OBSERVER_HISTOGRAM = 6;
+
+        // the test fields MOA has no getter for
+        private static Field numericEqualsPasses;
+        private static Field nominalBinaryAttValue;
+        private static Field gaussianMin;
+        private static Field gaussianMax;
+        private static Field gaussianEstimators;
+        private static Field estimatorWeightSum;
+        private static Field estimatorMean;
+        private static Field estimatorVarianceSum;
+        private static Field nominalTotalWeight;
+        private static Field nominalMissingWeight;
+
+        private static synchronized void initFields() throws IOException {
+            if (estimatorVarianceSum != null) {
+                return;
+            }
+            try {
+                numericEqualsPasses = accessible(NumericAttributeBinaryTest.class, "equalsPassesTest");
+                nominalBinaryAttValue = accessible(NominalAttributeBinaryTest.class, "attValue");
+                gaussianMin = accessible(GaussianNumericAttributeClassObserver.class, "minValueObservedPerClass");
+                gaussianMax = accessible(GaussianNumericAttributeClassObserver.class, "maxValueObservedPerClass");
+                gaussianEstimators = accessible(GaussianNumericAttributeClassObserver.class, "attValDistPerClass");
+                nominalTotalWeight = accessible(NominalAttributeClassObserver.class, "totalWeightObserved");
+                nominalMissingWeight = accessible(NominalAttributeClassObserver.class, "missingWeightObserved");
+                estimatorWeightSum = accessible(GaussianEstimator.class, "weightSum");
+                estimatorMean = accessible(GaussianEstimator.class, "mean");
+                estimatorVarianceSum = accessible(GaussianEstimator.class, "varianceSum");
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                throw new IOException("Unsupported MOA version for checkpoints", e);
+            }
+        }
+
+        private static Field accessible(Class<?> owner, String name) throws NoSuchFieldException {
+            Field field = owner.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+
+        public static void write(RAPHT ht, File file) throws IOException {
+            initFields();
+            ht.awaitPendingSplits();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeBytes(out, ht.getOptions().getAsCLIString().getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, serialize(ht.getModelContext()));
+                out.writeDouble(ht.trainingWeightSeenByModel);
+                out.writeLong(ht.instancesSeen);
+                out.writeLong(ht.accessEpoch);
+                out.writeInt(ht.pruneInterval);
+                out.writeInt(ht.pruneThreshold);
+                out.writeInt(ht.decisionNodeCount);
+                out.writeInt(ht.activeLeafNodeCount);
+                out.writeInt(ht.inactiveLeafNodeCount);
+                out.writeDouble(ht.inactiveLeafByteSizeEstimate);
+                out.writeDouble(ht.activeLeafByteSizeEstimate);
+                out.writeDouble(ht.byteSizeEstimateOverheadFraction);
+                out.writeBoolean(ht.growthAllowed);
+                out.writeInt(ht.learnPruned);
+                out.writeInt(ht.splitPruned);
+                out.writeFloat(ht.averageNodeSize);
+                out.writeInt(ht.averageCount);
+                out.writeInt(ht.maxNodeSize);
+                out.writeLong(ht.sweepCount);
+                out.writeLong(ht.sweepVisitedNodes);
+                out.writeInt(ht.budgetEvictions);
+                out.writeLong(ht.predictionsSeen);
+                out.writeLong(ht.asyncSplitsApplied);
+                out.writeLong(ht.asyncSplitsDiscarded);
+                out.writeLong(ht.asyncCarriedInstances);
+                out.writeLong(ht.asyncSplitDelay);
+                out.writeLong(ht.evaluationTime);
+                writeNode(out, ht.treeRoot);
+                writeSweep(out, ht);
+                out.writeLong(MAGIC);
+            }
+        }
+
+        public static RAPHT read(File file) throws IOException {
+            initFields();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Checkpoint larger than 2 GB: " + file);
+                }
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.getLong() != MAGIC) {
+                    throw new IOException("Not a RAPHT checkpoint: " + file);
+                }
+                int version = in.getInt();
+                if (version < 1 || version > FORMAT_VERSION) {
+                    throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+                }
+                RAPHT ht = new RAPHT();
+                ht.getOptions().setViaCLIString(new String(readBytes(in), StandardCharsets.UTF_8));
+                ht.setModelContext((InstancesHeader) deserialize(readBytes(in)));
+                ht.prepareForUse();
+                ht.trainingWeightSeenByModel = in.getDouble();
+                ht.instancesSeen = in.getLong();
+                ht.accessEpoch = in.getLong();
+                ht.pruneInterval = in.getInt();
+                ht.pruneThreshold = in.getInt();
+                ht.decisionNodeCount = in.getInt();
+                ht.activeLeafNodeCount = in.getInt();
+                ht.inactiveLeafNodeCount = in.getInt();
+                ht.inactiveLeafByteSizeEstimate = in.getDouble();
+                ht.activeLeafByteSizeEstimate = in.getDouble();
+                ht.byteSizeEstimateOverheadFraction = in.getDouble();
+                ht.growthAllowed = in.get() != 0;
+                ht.learnPruned = in.getInt();
+                ht.splitPruned = in.getInt();
+                ht.averageNodeSize = in.getFloat();
+                ht.averageCount = in.getInt();
+                ht.maxNodeSize = in.getInt();
+                ht.sweepCount = in.getLong();
+                ht.sweepVisitedNodes = in.getLong();
+                ht.budgetEvictions = in.getInt();
+                ht.predictionsSeen = in.getLong();
+                ht.asyncSplitsApplied = in.getLong();
+                ht.asyncSplitsDiscarded = in.getLong();
+                ht.asyncCarriedInstances = in.getLong();
+                ht.asyncSplitDelay = in.getLong();
+                ht.evaluationTime = in.getLong();
+                Node root = readNode(in, ht, version);
+                if (root != null) {
+                    ht.setTreeRoot(root);
+                    ht.subtreeAttached(root);
+                    ht.indexSubtree(root);
+                }
+                readSweep(in, ht);
+                if (in.getLong() != MAGIC) {
+                    throw new IOException("Truncated or corrupt checkpoint: " + file);
+                }
+                return ht;
+            } catch (BufferUnderflowException | ClassCastException e) {
+                throw new IOException("Truncated or corrupt checkpoint: " + file, e);
+            }
+        }
+
+        private static void writeNode(DataOutputStream out, Node node) throws IOException {
+            if (node == null) {
+                out.writeByte(NODE_NULL);
+                return;
+            }
+            Class<?> type = node.getClass();
+            if (type == SplitNode.class) {
+                SplitNode split = (SplitNode) node;
+                out.writeByte(NODE_SPLIT);
+                writeNodeCommon(out, node);
+                writeTest(out, split.splitTest);
+                out.writeInt(split.numChildren());
+                for (int i = 0; i < split.numChildren(); i++) {
+                    writeNode(out, split.getChild(i));
+                }
+            } else if (type == InactiveLearningNode.class) {
+                out.writeByte(NODE_INACTIVE);
+                writeNodeCommon(out, node);
+            } else if (type == ActiveLearningNode.class || type == LearningNodeNB.class
+                    || type == LearningNodeNBAdaptive.class) {
+                out.writeByte(type == ActiveLearningNode.class ? NODE_ACTIVE
+                        : type == LearningNodeNB.class ? NODE_NB : NODE_NB_ADAPTIVE);
+                writeNodeCommon(out, node);
+                ActiveLearningNode leaf = (ActiveLearningNode) node;
+                leaf.settleSparse();
+                out.writeDouble(leaf.weightSeenAtLastSplitEvaluation);
+                out.writeBoolean(leaf.isInitialized);
+                out.writeInt(leaf.attributeObservers.size());
+                for (AttributeClassObserver obs : leaf.attributeObservers) {
+                    writeObserver(out, obs);
+                }
+                writeVector(out, leaf.sparseClassWeights);
+                if (type == LearningNodeNBAdaptive.class) {
+                    out.writeDouble(((LearningNodeNBAdaptive) leaf).mcCorrectWeight);
+                    out.writeDouble(((LearningNodeNBAdaptive) leaf).nbCorrectWeight);
+                }
+            } else {
+                throw new IOException("Unsupported node type in checkpoint: " + type.getName());
+            }
+        }
+
+        private static void writeNodeCommon(DataOutputStream out, Node node) throws IOException {
+            out.writeInt(node.lastAccess);
+            writeVector(out, node.observedClassDistribution);
+        }
+
+        private static Node readNode(ByteBuffer in, RAPHT ht, int version) throws IOException {
+            byte tag = in.get();
+            if (tag == NODE_NULL) {
+                return null;
+            }
+            int lastAccess = in.getInt();
+            double[] dist = readArray(in);
+            Node node;
+            if (tag == NODE_SPLIT) {
+                InstanceConditionalTest test = readTest(in);
+                int numChildren = in.getInt();
+                SplitNode split = new SplitNode(test, dist, numChildren);
+                for (int i = 0; i < numChildren; i++) {
+                    Node child = readNode(in, ht, version);
+                    if (child != null) {
+                        split.setChild(i, child);
+                    } else {
+                        split.children.set(i, null);
+                    }
+                }
+                node = split;
+            } else if (tag == NODE_INACTIVE) {
+                node = new InactiveLearningNode(dist);
+            } else {
+                ActiveLearningNode leaf;
+                if (tag == NODE_ACTIVE) {
+                    leaf = new ActiveLearningNode(dist);
+                } else if (tag == NODE_NB) {
+                    leaf = new LearningNodeNB(dist);
+                } else if (tag == NODE_NB_ADAPTIVE) {
+                    leaf = new LearningNodeNBAdaptive(dist);
+                } else {
+                    throw new IOException("Unknown node tag in checkpoint: " + tag);
+                }
+                leaf.weightSeenAtLastSplitEvaluation = in.getDouble();
+                leaf.isInitialized = in.get() != 0;
+                int numObservers = in.getInt();
+                leaf.attributeObservers = new AutoExpandVector<>(numObservers);
+                for (int i = 0; i < numObservers; i++) {
+                    leaf.attributeObservers.add(readObserver(in, ht, leaf, i, version));
+                }
+                leaf.sparseClassWeights = version >= 2 ? readVector(in) : null;
+                if (leaf.sparseClassWeights != null) {
+                    // the leaf was settled before it was written
+                    int numClasses = ht.getModelContext().numClasses();
+                    leaf.sparseObserved = new AutoExpandVector<>(numObservers);
+                    for (int i = 0; i < numObservers; i++) {
+                        leaf.sparseObserved.add(leaf.attributeObservers.get(i) == null ? null
+                                : Arrays.copyOf(leaf.sparseClassWeights.getArrayRef(), numClasses));
+                    }
+                }
+                if (tag == NODE_NB_ADAPTIVE) {
+                    ((LearningNodeNBAdaptive) leaf).mcCorrectWeight = in.getDouble();
+                    ((LearningNodeNBAdaptive) leaf).nbCorrectWeight = in.getDouble();
+                }
+                node = leaf;
+            }
+            node.lastAccess = lastAccess;
+            return node;
+        }
+
+        private static void writeTest(DataOutputStream out, InstanceConditionalTest test) throws IOException {
+            try {
+                if (test.getClass() == NumericAttributeBinaryTest.class) {
+                    out.writeByte(TEST_NUMERIC);
+                    out.writeInt(test.getAttsTestDependsOn()[0]);
+                    out.writeDouble(((NumericAttributeBinaryTest) test).getSplitValue());
+                    out.writeBoolean(numericEqualsPasses.getBoolean(test));
+                } else if (test.getClass() == NominalAttributeBinaryTest.class) {
+                    out.writeByte(TEST_NOMINAL_BINARY);
+                    out.writeInt(test.getAttsTestDependsOn()[0]);
+                    out.writeInt(nominalBinaryAttValue.getInt(test));
+                } else if (test.getClass() == NominalAttributeMultiwayTest.class) {
+                    out.writeByte(TEST_NOMINAL_MULTIWAY);
+                    out.writeInt(test.getAttsTestDependsOn()[0]);
+                } else {
+                    out.writeByte(TEST_SERIALIZED);
+                    writeBytes(out, serialize(test));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static InstanceConditionalTest readTest(ByteBuffer in) throws IOException {
+            byte tag = in.get();
+            switch (tag) {
+                case TEST_NUMERIC:
+                    return new NumericAttributeBinaryTest(in.getInt(), in.getDouble(), in.get() != 0);
+                case TEST_NOMINAL_BINARY:
+                    return new NominalAttributeBinaryTest(in.getInt(), in.getInt());
+                case TEST_NOMINAL_MULTIWAY:
+                    return new NominalAttributeMultiwayTest(in.getInt());
+                case TEST_SERIALIZED:
+                    return (InstanceConditionalTest) deserialize(readBytes(in));
+                default:
+                    throw new IOException("Unknown split test tag in checkpoint: " + tag);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void writeObserver(DataOutputStream out, AttributeClassObserver obs) throws IOException {
+            try {
+                if (obs == null) {
+                    out.writeByte(OBSERVER_NONE);
+                } else if (obs.getClass() == GaussianNumericAttributeClassObserver.class) {
+                    out.writeByte(OBSERVER_GAUSSIAN);
+                    writeVector(out, (DoubleVector) gaussianMin.get(obs));
+                    writeVector(out, (DoubleVector) gaussianMax.get(obs));
+                    AutoExpandVector<GaussianEstimator> estimators =
+                            (AutoExpandVector<GaussianEstimator>) gaussianEstimators.get(obs);
+                    out.writeInt(estimators.size());
+                    for (GaussianEstimator estimator : estimators) {
+                        out.writeBoolean(estimator != null);
+                        if (estimator != null) {
+                            out.writeDouble(estimatorWeightSum.getDouble(estimator));
+                            out.writeDouble(estimatorMean.getDouble(estimator));
+                            out.writeDouble(estimatorVarianceSum.getDouble(estimator));
+                        }
+                    }
+                } else if (obs.getClass() == NominalAttributeClassObserver.class) {
+                    NominalAttributeClassObserver nominal = (NominalAttributeClassObserver) obs;
+                    out.writeByte(OBSERVER_NOMINAL);
+                    out.writeDouble(nominalTotalWeight.getDouble(obs));
+                    out.writeDouble(nominalMissingWeight.getDouble(obs));
+                    out.writeInt(nominal.attValDistPerClass.size());
+                    for (DoubleVector counts : nominal.attValDistPerClass) {
+                        writeVector(out, counts);
+                    }
+                } else if (obs.getClass() == NullAttributeClassObserver.class) {
+                    out.writeByte(OBSERVER_NULL);
+                } else if (obs.getClass() == NominalSlabObserver.class) {
+                    NominalSlabObserver view = (NominalSlabObserver) obs;
+                    NominalSlabLayout layout = view.slab.layout;
+                    int numClasses = layout.numClasses;
+                    int numValues = layout.numValues[view.ordinal];
+                    out.writeByte(OBSERVER_SLAB);
+                    out.writeInt(view.ordinal);
+                    out.writeInt(numValues);
+                    out.writeInt(numClasses);
+                    out.writeDouble(view.totalWeightOfClassObservations());
+                    out.writeDouble(view.weightOfObservedMissingValues());
+                    for (int c = 0; c < numClasses; c++) {
+                        out.writeInt(view.valuesSeen(c));
+                    }
+                    int offset = layout.offset[view.ordinal];
+                    for (int k = 0; k < numValues * numClasses; k++) {
+                        out.writeDouble(view.slab.count(offset + k));
+                    }
+                } else if (obs.getClass() == HistogramNumericObserver.class) {
+                    HistogramNumericObserver histogram = (HistogramNumericObserver) obs;
+                    out.writeByte(OBSERVER_HISTOGRAM);
+                    out.writeInt(histogram.numBinsOption.getValue());
+                    out.writeInt(histogram.warmupOption.getValue());
+                    out.writeBoolean(histogram.fixedRangeOption.isSet());
+                    out.writeDouble(histogram.lowerOption.getValue());
+                    out.writeDouble(histogram.upperOption.getValue());
+                    out.writeInt(histogram.numBins);
+                    out.writeInt(histogram.numClasses);
+                    out.writeDouble(histogram.lower);
+                    out.writeDouble(histogram.width);
+                    writeArray(out, histogram.readWeights());
+                    writeArray(out, histogram.readClassWeights());
+                    out.writeInt(histogram.numPending);
+                    for (int i = 0; i < histogram.numPending; i++) {
+                        out.writeDouble(histogram.pendingValues[i]);
+                        out.writeInt(histogram.pendingClasses[i]);
+                        out.writeDouble(histogram.pendingWeights[i]);
+                    }
+                } else {
+                    out.writeByte(OBSERVER_SERIALIZED);
+                    writeBytes(out, serialize(obs));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static AttributeClassObserver readObserver(ByteBuffer in, RAPHT ht,
+                ActiveLearningNode leaf, int attIndex, int version) throws IOException {
+            byte tag = in.get();
+            try {
+                switch (tag) {
+                    case OBSERVER_NONE:
+                        return null;
+                    case OBSERVER_GAUSSIAN: {
+                        // built directly, newNumericClassObserver copies through serialization
+                        GaussianNumericAttributeClassObserver obs = new GaussianNumericAttributeClassObserver();
+                        obs.numBinsOption.setValue(numericPrototype(ht).numBinsOption.getValue());
+                        gaussianMin.set(obs, readVector(in));
+                        gaussianMax.set(obs, readVector(in));
+                        int size = in.getInt();
+                        AutoExpandVector<GaussianEstimator> estimators = new AutoExpandVector<>(size);
+                        for (int i = 0; i < size; i++) {
+                            GaussianEstimator estimator = null;
+                            if (in.get() != 0) {
+                                estimator = new GaussianEstimator();
+                                estimatorWeightSum.setDouble(estimator, in.getDouble());
+                                estimatorMean.setDouble(estimator, in.getDouble());
+                                estimatorVarianceSum.setDouble(estimator, in.getDouble());
+                            }
+                            estimators.add(estimator);
+                        }
+                        gaussianEstimators.set(obs, estimators);
+                        return obs;
+                    }
+                    case OBSERVER_NOMINAL: {
+                        NominalAttributeClassObserver obs = new NominalAttributeClassObserver();
+                        nominalTotalWeight.setDouble(obs, in.getDouble());
+                        nominalMissingWeight.setDouble(obs, in.getDouble());
+                        int size = in.getInt();
+                        AutoExpandVector<DoubleVector> counts = new AutoExpandVector<>(size);
+                        for (int i = 0; i < size; i++) {
+                            counts.add(readVector(in));
+                        }
+                        obs.attValDistPerClass = counts;
+                        return obs;
+                    }
+                    case OBSERVER_NULL:
+                        return new NullAttributeClassObserver();
+                    case OBSERVER_SLAB: {
+                        if (leaf.nominalSlab == null) {
+                            leaf.nominalSlab = ht.newNominalSlab(ht.getModelContext());
+                        }
+                        NominalSlab slab = leaf.nominalSlab;
+                        NominalSlabLayout layout = slab.layout;
+                        int ordinal = in.getInt();
+                        int numValues = in.getInt();
+                        int numClasses = in.getInt();
+                        if (attIndex >= layout.ordinal.length || ordinal < 0 || ordinal != layout.ordinal[attIndex]
+                                || numValues != layout.numValues[ordinal] || numClasses != layout.numClasses) {
+                            throw new IOException("Checkpoint nominal slab does not match the stream header");
+                        }
+                        slab.addWeight(2 * ordinal, in.getDouble());
+                        slab.addWeight(2 * ordinal + 1, in.getDouble());
+                        for (int c = 0; c < numClasses; c++) {
+                            slab.valuesSeen[ordinal * numClasses + c] = in.getInt();
+                        }
+                        int offset = layout.offset[ordinal];
+                        for (int k = 0; k < numValues * numClasses; k++) {
+                            slab.addCount(offset + k, in.getDouble());
+                        }
+                        return new NominalSlabObserver(slab, attIndex);
+                    }
+                    case OBSERVER_HISTOGRAM: {
+                        int numBins = in.getInt();
+                        int warmup = in.getInt();
+                        boolean fixedRange = in.get() != 0;
+                        double lowerOption = in.getDouble();
+                        double upperOption = in.getDouble();
+                        Object prototype = ht.getPreparedClassOption(ht.numericEstimatorOption);
+                        HistogramNumericObserver obs;
+                        if (prototype instanceof HistogramNumericObserver
+                                && sameOptions((HistogramNumericObserver) prototype, numBins, warmup,
+                                        fixedRange, lowerOption, upperOption)) {
+                            obs = new HistogramNumericObserver((HistogramNumericObserver) prototype);
+                        } else {
+                            obs = new HistogramNumericObserver();
+                            obs.numBinsOption.setValue(numBins);
+                            obs.warmupOption.setValue(warmup);
+                            obs.fixedRangeOption.setValue(fixedRange);
+                            obs.lowerOption.setValue(lowerOption);
+                            obs.upperOption.setValue(upperOption);
+                        }
+                        obs.numBins = in.getInt();
+                        obs.numClasses = in.getInt();
+                        obs.lower = in.getDouble();
+                        obs.width = in.getDouble();
+                        obs.weights = readArray(in);
+                        if (version < 4 && obs.weights != null) {
+                            // laid out class by class
+                            obs.weights = transpose(obs.weights, obs.numClasses, obs.numBins);
+                        }
+                        obs.classWeights = readArray(in);
+                        int pending = in.getInt();
+                        if (pending > 0) {
+                            if (pending > warmup) {
+                                throw new IOException("Checkpoint histogram buffers more values than its warmup");
+                            }
+                            obs.pendingValues = new double[warmup];
+                            obs.pendingClasses = new int[warmup];
+                            obs.pendingWeights = new double[warmup];
+                            for (int i = 0; i < pending; i++) {
+                                obs.pendingValues[i] = in.getDouble();
+                                obs.pendingClasses[i] = in.getInt();
+                                obs.pendingWeights[i] = in.getDouble();
+                            }
+                            obs.numPending = pending;
+                        }
+                        LeafArena arena = ht.leafArena();
+                        if (arena != null) {
+                            obs.attach(arena);
+                        }
+                        return obs;
+                    }
+                    case OBSERVER_SERIALIZED:
+                        return (AttributeClassObserver) deserialize(readBytes(in));
+                    default:
+                        throw new IOException("Unknown observer tag in checkpoint: " + tag);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Deep copy of an observer through the same fields the checkpoint
+         * stores, much cheaper than the serialization behind copy(), which
+         * remains the fallback for other observer types.
+         */
+        @SuppressWarnings("unchecked")
+        public static AttributeClassObserver copyObserver(AttributeClassObserver obs) {
+            try {
+                initFields();
+                if (obs.getClass() == GaussianNumericAttributeClassObserver.class) {
+                    GaussianNumericAttributeClassObserver copy = new GaussianNumericAttributeClassObserver();
+                    copy.numBinsOption.setValue(((GaussianNumericAttributeClassObserver) obs).numBinsOption.getValue());
+                    gaussianMin.set(copy, new DoubleVector((DoubleVector) gaussianMin.get(obs)));
+                    gaussianMax.set(copy, new DoubleVector((DoubleVector) gaussianMax.get(obs)));
+                    AutoExpandVector<GaussianEstimator> estimators =
+                            (AutoExpandVector<GaussianEstimator>) gaussianEstimators.get(obs);
+                    AutoExpandVector<GaussianEstimator> copies = new AutoExpandVector<>(estimators.size());
+                    for (GaussianEstimator estimator : estimators) {
+                        GaussianEstimator estimatorCopy = null;
+                        if (estimator != null) {
+                            estimatorCopy = new GaussianEstimator();
+                            estimatorWeightSum.setDouble(estimatorCopy, estimatorWeightSum.getDouble(estimator));
+                            estimatorMean.setDouble(estimatorCopy, estimatorMean.getDouble(estimator));
+                            estimatorVarianceSum.setDouble(estimatorCopy, estimatorVarianceSum.getDouble(estimator));
+                        }
+                        copies.add(estimatorCopy);
+                    }
+                    gaussianEstimators.set(copy, copies);
+                    return copy;
+                } else if (obs.getClass() == NominalAttributeClassObserver.class) {
+                    NominalAttributeClassObserver copy = new NominalAttributeClassObserver();
+                    nominalTotalWeight.setDouble(copy, nominalTotalWeight.getDouble(obs));
+                    nominalMissingWeight.setDouble(copy, nominalMissingWeight.getDouble(obs));
+                    AutoExpandVector<DoubleVector> counts = ((NominalAttributeClassObserver) obs).attValDistPerClass;
+                    copy.attValDistPerClass = new AutoExpandVector<>(counts.size());
+                    for (DoubleVector classCounts : counts) {
+                        copy.attValDistPerClass.add(classCounts != null ? new DoubleVector(classCounts) : null);
+                    }
+                    return copy;
+                } else if (obs.getClass() == NullAttributeClassObserver.class) {
+                    return new NullAttributeClassObserver();
+                } else if (obs.getClass() == HistogramNumericObserver.class) {
+                    return new HistogramNumericObserver((HistogramNumericObserver) obs);
+                }
+            } catch (IOException | IllegalAccessException e) {
+                // fall through to the generic copy
+            }
+            return (AttributeClassObserver) obs.copy();
+        }
+
+        private static boolean sameOptions(HistogramNumericObserver obs, int numBins, int warmup,
+                boolean fixedRange, double lower, double upper) {
+            return obs.numBinsOption.getValue() == numBins && obs.warmupOption.getValue() == warmup
+                    && obs.fixedRangeOption.isSet() == fixedRange
+                    && Double.compare(obs.lowerOption.getValue(), lower) == 0
+                    && Double.compare(obs.upperOption.getValue(), upper) == 0;
+        }
+
+        private static GaussianNumericAttributeClassObserver numericPrototype(RAPHT ht) throws IOException {
+            Object prototype = ht.getPreparedClassOption(ht.numericEstimatorOption);
+            if (!(prototype instanceof GaussianNumericAttributeClassObserver)) {
+                throw new IOException("Checkpoint observer does not match the numeric estimator option");
+            }
+            return (GaussianNumericAttributeClassObserver) prototype;
+        }
+
+        /**
+         * The sweep path is stored as branch indices from the root. A path
+         * that no longer starts at the root is written as no sweep, which
+         * then starts over at the next window.
+         */
+        private static void writeSweep(DataOutputStream out, RAPHT ht) throws IOException {
+            int length = ht.sweepPath.size();
+            boolean valid = ht.sweepInProgress && (length == 0 || ht.sweepPath.get(0) == ht.treeRoot);
+            for (int k = 0; valid && k + 1 < length; k++) {
+                valid = ht.sweepPath.get(k).getChild(ht.sweepBranch[k]) == ht.sweepPath.get(k + 1);
+            }
+            out.writeBoolean(valid);
+            out.writeBoolean(ht.sweepRootVisited);
+            out.writeInt(ht.sweepTimeStamp);
+            out.writeInt(valid ? length : 0);
+            for (int k = 0; valid && k < length; k++) {
+                out.writeInt(ht.sweepBranch[k]);
+            }
+        }
+
+        private static void readSweep(ByteBuffer in, RAPHT ht) {
+            ht.sweepInProgress = in.get() != 0;
+            ht.sweepRootVisited = in.get() != 0;
+            ht.sweepTimeStamp = in.getInt();
+            int length = in.getInt();
+            ht.sweepPath.clear();
+            ht.sweepBranch = new int[Math.max(16, length)];
+            Node node = ht.treeRoot;
+            for (int k = 0; k < length; k++) {
+                ht.sweepBranch[k] = in.getInt();
+                ht.sweepPath.add((SplitNode) node);
+                if (k + 1 < length) {
+                    node = ((SplitNode) node).getChild(ht.sweepBranch[k]);
+                }
+            }
+        }
+
+        private static void writeVector(DataOutputStream out, DoubleVector vector) throws IOException {
+            if (vector == null) {
+                out.writeInt(-1);
+                return;
+            }
+            double[] values = vector.getArrayRef();
+            int length = vector.numValues();
+            out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                out.writeDouble(values[i]);
+            }
+        }
+
+        private static void writeArray(DataOutputStream out, double[] values) throws IOException {
+            if (values == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(values.length);
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+
+        /**
+         * The rows by columns matrix values, laid out row by row, laid out
+         * column by column.
+         */
+        private static double[] transpose(double[] values, int rows, int columns) {
+            double[] transposed = new double[values.length];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    transposed[c * rows + r] = values[r * columns + c];
+                }
+            }
+            return transposed;
+        }
+
+        private static double[] readArray(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            double[] values = new double[length];
+            in.asDoubleBuffer().get(values);
+            in.position(in.position() + 8 * length);
+            return values;
+        }
+
+        private static DoubleVector readVector(ByteBuffer in) {
+            double[] values = readArray(in);
+            return values == null ? null : new DoubleVector(values);
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static byte[] readBytes(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return bytes;
+        }
+
+        private static byte[] serialize(Object obj) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(obj);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Object deserialize(byte[] bytes) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Immutable node of a tree published for concurrent readers. Split
+     * nodes keep their test, children and class distribution, majority
+     * class leaves their class distribution and Naive Bayes leaves a frozen
+     * copy of the leaf. Routing follows filterInstanceToLeaf: a missing child
+     * or branch predicts with the split node's own distribution.
+     */
+    public static final class PublishedNode {
+
+        private final InstanceConditionalTest splitTest;
+
+        private final PublishedNode[] children;
+
+        private final double[] votes;
+
+        private final LearningNodeNB leaf;
+
+        public PublishedNode(InstanceConditionalTest splitTest, PublishedNode[] children,
+                double[] votes, LearningNodeNB leaf) {
+            this.splitTest = splitTest;
+            this.children = children;
+            this.votes = votes;
+            this.leaf = leaf;
+        }
+
+        public double[] getVotesForInstance(Instance inst, RAPHT ht) {
+            PublishedNode node = this;
+            while (node.splitTest != null) {
+                int branch = node.splitTest.branchForInstance(inst);
+                if (branch < 0 || branch >= node.children.length || node.children[branch] == null) {
+                    break;
+                }
+                node = node.children[branch];
+            }
+            if (node.leaf != null) {
+                return node.leaf.getClassVotes(inst, ht);
+            }
+            return node.votes.clone();
+        }
+    }
+
+    public static class Node extends AbstractMOAObject {
+
+        private static final long serialVersionUID = 1L;
+
+        protected DoubleVector observedClassDistribution;
+
+        protected int lastAccess = -1;
+
+        protected int depth = 0;
+
+        protected SplitNode parent = null;
+
+        protected ExpiryEntry expiryEntry = null;
+
+        // this node's share of treeByteSize, as measured by the last refreshByteSize
+        protected int byteSize;
+
+        // set when the node may have grown since that measurement
+        protected boolean byteSizeStale;
+
+        // immutable copy in the last published tree, null when this node or its subtree changed since
+        protected transient PublishedNode published = null;
+
+        public Node(double[] classObservations) {
+            this.observedClassDistribution = new DoubleVector(classObservations);
+        }
+
+        public int getDepth() {
+            return this.depth;
+        }
+
+        /**
+         * Drops the published copies of this node and its ancestors, which
+         * are rebuilt at the next publication; the rest are shared.
+         */
+        protected void unpublish() {
+            for (Node node = this; node != null && node.published != null; node = node.parent) {
+                node.published = null;
+            }
+        }
+
+        public SplitNode getParent() {
+            return this.parent;
+        }
+
+        protected void setDepth(int depth) {
+            this.depth = depth;
+        }
+
+        public int calcByteSize() {
+            return (int) (SizeOf.sizeOf(this) + SizeOf.fullSizeOf(this.observedClassDistribution));
+        }
+
+        public int calcByteSizeIncludingSubtree() {
+            return calcByteSize();
+        }
+
+        /**
+         * Same accounting as calcByteSize, estimated without the sizeofag agent.
+         */
+        public int estimateByteSize() {
+            return (int) (ByteSizeEstimator.shallowSize(getClass())
+                    + ByteSizeEstimator.sizeOf(this.observedClassDistribution));
+        }
+
+        public int estimateByteSizeIncludingSubtree() {
+            return estimateByteSize();
+        }
+
+        public boolean isLeaf() {
+            return true;
+        }
+
+        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
+                int parentBranch) {
+            return new FoundNode(this, parent, parentBranch);
+        }
+
+        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
+                                              int parentBranch, int TimeStamp) {
+            return new FoundNode(this, parent, parentBranch);
+        }
+
+        public double[] getObservedClassDistribution() {
+            return this.observedClassDistribution.getArrayCopy();
+        }
+
+        public double[] getClassVotes(Instance inst, RAPHT ht) {
+            return this.observedClassDistribution.getArrayCopy();
+        }
+
+        public boolean observedClassDistributionIsPure() {
+            return this.observedClassDistribution.numNonZeroEntries() < 2;
+        }
+
+        public void describeSubtree(RAPHT ht, StringBuilder out,
+                                    int indent) {
+            StringUtils.appendIndented(out, indent, "Leaf ");
+            out.append(ht.getClassNameString());
+            out.append(" = ");
+            out.append(ht.getClassLabelString(this.observedClassDistribution.maxIndex()));
+            out.append(" weights: ");
+            this.observedClassDistribution.getSingleLineDescription(out,
+                    ht.treeRoot.observedClassDistribution.numValues());
+            StringUtils.appendNewline(out);
+        }
+
+        public int subtreeDepth() {
+            return 0;
+        }
+
+        public double calculatePromise() {
+            double totalSeen = this.observedClassDistribution.sumOfValues();
+            return totalSeen > 0.0 ? (totalSeen - this.observedClassDistribution.getValue(this.observedClassDistribution.maxIndex()))
+                    : 0.0;
+        }
+
+        @Override
+        public void getDescription(StringBuilder sb, int indent) {
+            describeSubtree(null, sb, indent);
+        }
+    }
+
+    public static class SplitNode extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        protected InstanceConditionalTest splitTest;
+
+        protected AutoExpandVector<Node> children;
+
+        @Override
+        public int calcByteSize() {
+            return super.calcByteSize()
+                    + (int) (SizeOf.sizeOf(this.children) + SizeOf.fullSizeOf(this.splitTest));
+        }
+
+        @Override
+        public int calcByteSizeIncludingSubtree() {
+            int byteSize = calcByteSize();
+            for (Node child : this.children) {
+                if (child != null) {
+                    byteSize += child.calcByteSizeIncludingSubtree();
+                }
+            }
+            return byteSize;
+        }
+
+        @Override
+        public int estimateByteSize() {
+            return super.estimateByteSize()
+                    + (int) (ByteSizeEstimator.shallowSize(this.children.getClass())
+                    + ByteSizeEstimator.graphSize(this.splitTest));
+        }
+
+        @Override
+        public int estimateByteSizeIncludingSubtree() {
+            int byteSize = estimateByteSize();
+            for (Node child : this.children) {
+                if (child != null) {
+                    byteSize += child.estimateByteSizeIncludingSubtree();
+                }
+            }
+            return byteSize;
+        }
+
+        public SplitNode(InstanceConditionalTest splitTest,
+                double[] classObservations, int size) {
+            super(classObservations);
+            this.splitTest = splitTest;
+            this.children = new AutoExpandVector<>(size);
+        }
+        
+        public SplitNode(InstanceConditionalTest splitTest,
+                double[] classObservations) {
+            super(classObservations);
+            this.splitTest = splitTest;
+            this.children = new AutoExpandVector<>();
+        }
+
+
+        public int numChildren() {
+            return this.children.size();
+        }
+
+        public void setChild(int index, Node child) {
+            if ((this.splitTest.maxBranches() >= 0)
+                    && (index >= this.splitTest.maxBranches())) {
+                throw new IndexOutOfBoundsException();
+            }
+            this.children.set(index, child);
+            if (child != null) {
+                child.parent = this;
+                child.setDepth(this.depth + 1);
+            }
+            unpublish();
+        }
+
+        public Node getChild(int index) {
+            return this.children.get(index);
+        }
+
+        @Override
+        protected void setDepth(int depth) {
+            if (this.depth != depth) {
+                // a moved subtree is internally consistent, only shift it
+                this.depth = depth;
+                for (Node child : this.children) {
+                    if (child != null) {
+                        child.setDepth(depth + 1);
+                    }
+                }
+            }
+        }
+
+        public int instanceChildIndex(Instance inst) {
+            return this.splitTest.branchForInstance(inst);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
+        @Override
+        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
+                int parentBranch) {
+            int childIndex = instanceChildIndex(inst);
+            if (childIndex >= 0) {
+                Node child = getChild(childIndex);
+                if (child != null) {
+                    return child.filterInstanceToLeaf(inst, this, childIndex);
+                }
+                return new FoundNode(null, this, childIndex);
+            }
+            return new FoundNode(this, parent, parentBranch);
+        }
+
+        @Override
+        public FoundNode filterInstanceToLeaf(Instance inst, SplitNode parent,
+                                              int parentBranch, int TimeStamp) {
+            int childIndex = instanceChildIndex(inst);
+            this.lastAccess = TimeStamp;
+            if (childIndex >= 0) {
+                Node child = getChild(childIndex);
+                if (child != null) {
+                    return child.filterInstanceToLeaf(inst, this, childIndex, TimeStamp);
+                }
+                return new FoundNode(null, this, childIndex);
+            }
+            return new FoundNode(this, parent, parentBranch);
+        }
+
+        @Override
+        public void describeSubtree(RAPHT ht, StringBuilder out,
+                                    int indent) {
+            for (int branch = 0; branch < numChildren(); branch++) {
+                Node child = getChild(branch);
+                if (child != null) {
+                    StringUtils.appendIndented(out, indent, "if ");
+                    out.append(this.splitTest.describeConditionForBranch(branch,
+                            ht.getModelContext()));
+                    out.append(": ");
+                    StringUtils.appendNewline(out);
+                    child.describeSubtree(ht, out, indent + 2);
+                }
+            }
+        }
+
+        @Override
+        public int subtreeDepth() {
+            int maxChildDepth = 0;
+            for (Node child : this.children) {
+                if (child != null) {
+                    int depth = child.subtreeDepth();
+                    if (depth > maxChildDepth) {
+                        maxChildDepth = depth;
+                    }
+                }
+            }
+            return maxChildDepth + 1;
+        }
+    }
+
+    public static abstract class LearningNode extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        public LearningNode(double[] initialClassObservations) {
+            super(initialClassObservations);
+        }
+
+        public abstract void learnFromInstance(Instance inst, RAPHT ht);
+    }
+
+    public static class InactiveLearningNode extends LearningNode {
+
+        private static final long serialVersionUID = 1L;
+
+        public InactiveLearningNode(double[] initialClassObservations) {
+            super(initialClassObservations);
+        }
+
+        @Override
+        public void learnFromInstance(Instance inst, RAPHT ht) {
+            int classValue = (int) inst.classValue();
+            if (classValue >= this.observedClassDistribution.numValues()) {
+                this.byteSizeStale = true;
+            }
+            this.observedClassDistribution.addToValue(classValue, inst.weight());
+            if (this.byteSizeStale) {
+                ht.refreshByteSize(this);
+            }
+        }
+    }
+
+    public static class ActiveLearningNode extends LearningNode {
+
+        private static final long serialVersionUID = 1L;
+
+        protected double weightSeenAtLastSplitEvaluation;
+
+        protected AutoExpandVector<AttributeClassObserver> attributeObservers = new AutoExpandVector<>();
+
+        // counts behind the NominalSlabObserver entries of attributeObservers, null without nominalSlab
+        protected NominalSlab nominalSlab;
+
+        // with sparseLeaves, the class weights learned here and, per observer, how much of them it has seen
+        protected DoubleVector sparseClassWeights;
+
+        protected AutoExpandVector<double[]> sparseObserved;
         
         protected boolean isInitialized;
 
-        public ActiveLearningNode(double[] initialClassObservations) {
-            super(initialClassObservations);
-            this.weightSeenAtLastSplitEvaluation = getWeightSeen();
-            this.isInitialized = false;
+        // set while a background worker evaluates this leaf, its statistics are frozen meanwhile
+        protected transient PendingSplit pendingSplit;
+
+        public ActiveLearningNode(double[] initialClassObservations) {
+            super(initialClassObservations);
+            this.weightSeenAtLastSplitEvaluation = getWeightSeen();
+            this.isInitialized = false;
+        }
+
+        @Override
+        public int calcByteSize() {
+            return super.calcByteSize()
+                    + (int) (SizeOf.fullSizeOf(this.attributeObservers));
+        }
+
+        @Override
+        public int estimateByteSize() {
+            long size = ByteSizeEstimator.sizeOf(this.attributeObservers);
+            for (AttributeClassObserver obs : this.attributeObservers) {
+                size += ByteSizeEstimator.sizeOf(obs);
+            }
+            if (this.nominalSlab != null) {
+                size += this.nominalSlab.estimateByteSize();
+            }
+            if (this.sparseObserved != null) {
+                size += ByteSizeEstimator.sizeOf(this.sparseClassWeights)
+                        + ByteSizeEstimator.sizeOf(this.sparseObserved);
+                for (double[] observed : this.sparseObserved) {
+                    if (observed != null) {
+                        size += ByteSizeEstimator.arraySize(observed.length, 8);
+                    }
+                }
+            }
+            return super.estimateByteSize() + (int) size;
+        }
+
+        @Override
+        public void learnFromInstance(Instance inst, RAPHT ht) {
+            this.lastAccess = ht.accessTime();
+            boolean sparse = ht.sparseLeavesOption.isSet();
+            if (!this.isInitialized) {
+                this.attributeObservers = sparse ? new AutoExpandVector<AttributeClassObserver>()
+                        : new AutoExpandVector<AttributeClassObserver>(inst.numAttributes());
+                this.isInitialized = true;
+                this.byteSizeStale = true;
+            }
+            int classValue = (int) inst.classValue();
+            if (classValue >= this.observedClassDistribution.numValues()) {
+                this.byteSizeStale = true;
+            }
+            this.observedClassDistribution.addToValue(classValue,
+                    inst.weight());
+            if (sparse) {
+                learnSparse(inst, ht);
+            } else {
+                for (int i = 0; i < inst.numAttributes() - 1; i++) {
+                    int instAttIndex = modelAttIndexToInstanceAttIndex(i, inst);
+                    AttributeClassObserver obs = this.attributeObservers.get(i);
+                    double value = inst.value(instAttIndex);
+                    if (obs == null) {
+                        obs = newObserver(inst, i, instAttIndex, ht);
+                        this.attributeObservers.set(i, obs);
+                        observerCreated(i);
+                        this.byteSizeStale = true;
+                    } else if (!this.byteSizeStale && ByteSizeEstimator.mayGrow(obs, value, classValue)) {
+                        this.byteSizeStale = true;
+                    }
+                    obs.observeAttributeClass(value, classValue, inst.weight());
+                }
+            }
+            if (this.byteSizeStale) {
+                ht.refreshByteSize(this);
+            }
+        }
+
+        /**
+         * Hands the observers of a node that left the tree to pool and drops
+         * its statistics, reset then turns it into a new leaf. A nominal
+         * slab is kept, cleared.
+         */
+        protected void release(NodePool pool) {
+            for (AttributeClassObserver obs : this.attributeObservers) {
+                if (obs != null) {
+                    pool.offerObserver(obs);
+                }
+            }
+            this.attributeObservers.clear();
+            if (this.nominalSlab != null) {
+                this.nominalSlab.clear();
+            }
+            this.sparseClassWeights = null;
+            this.sparseObserved = null;
+            this.isInitialized = false;
+        }
+
+        protected void reset(double[] initialClassObservations) {
+            this.observedClassDistribution = new DoubleVector(initialClassObservations);
+            this.lastAccess = -1;
+            this.depth = 0;
+            this.parent = null;
+            this.expiryEntry = null;
+            this.published = null;
+            this.pendingSplit = null;
+            this.weightSeenAtLastSplitEvaluation = getWeightSeen();
+        }
+
+        protected AttributeClassObserver newObserver(Instance inst, int attIndex, int instAttIndex, RAPHT ht) {
+            if (!inst.attribute(instAttIndex).isNominal()) {
+                return ht.newNumericClassObserver();
+            } else if (ht.usesNominalSlab()) {
+                if (this.nominalSlab == null) {
+                    this.nominalSlab = ht.newNominalSlab(inst.dataset());
+                }
+                return new NominalSlabObserver(this.nominalSlab, attIndex);
+            }
+            return ht.newNominalClassObserver();
+        }
+
+        /**
+         * Observes only the non-zero entries of the instance, creating
+         * observers as attributes first turn up. The zeros the observers
+         * missed are added by settleSparse before they are read.
+         */
+        protected void learnSparse(Instance inst, RAPHT ht) {
+            int classValue = (int) inst.classValue();
+            double weight = inst.weight();
+            if (this.sparseClassWeights == null) {
+                this.sparseClassWeights = new DoubleVector();
+                this.sparseObserved = new AutoExpandVector<>();
+            }
+            if (classValue >= this.sparseClassWeights.numValues()) {
+                this.byteSizeStale = true;
+            }
+            this.sparseClassWeights.addToValue(classValue, weight);
+            int classIndex = inst.classIndex();
+            for (int k = 0; k < inst.numValues(); k++) {
+                int instAttIndex = inst.index(k);
+                double value = inst.valueSparse(k);
+                if (instAttIndex == classIndex || value == 0.0) {
+                    continue;
+                }
+                int i = instAttIndex < classIndex ? instAttIndex : instAttIndex - 1;
+                AttributeClassObserver obs = this.attributeObservers.get(i);
+                double[] observed = this.sparseObserved.get(i);
+                if (obs == null) {
+                    obs = newObserver(inst, i, instAttIndex, ht);
+                    setGrowing(this.attributeObservers, i, obs);
+                    observerCreated(i);
+                    this.byteSizeStale = true;
+                } else if (!this.byteSizeStale && ByteSizeEstimator.mayGrow(obs, value, classValue)) {
+                    this.byteSizeStale = true;
+                }
+                if (observed == null) {
+                    observed = new double[inst.numClasses()];
+                    setGrowing(this.sparseObserved, i, observed);
+                    this.byteSizeStale = true;
+                }
+                obs.observeAttributeClass(value, classValue, weight);
+                observed[classValue] += weight;
+            }
+        }
+
+        /**
+         * Adds to every observer the zeros of the instances it missed since
+         * the last call, so its statistics match a dense leaf. Attributes
+         * that were never non-zero have no observer and cannot be split on.
+         */
+        protected void settleSparse() {
+            if (this.sparseObserved == null) {
+                return;
+            }
+            for (int i = 0; i < this.sparseObserved.size(); i++) {
+                double[] observed = this.sparseObserved.get(i);
+                if (observed == null) {
+                    continue;
+                }
+                AttributeClassObserver obs = this.attributeObservers.get(i);
+                for (int c = 0; c < observed.length; c++) {
+                    double zeros = this.sparseClassWeights.getValue(c) - observed[c];
+                    if (zeros > 0.0) {
+                        if (obs != null) {
+                            if (!this.byteSizeStale && ByteSizeEstimator.mayGrow(obs, 0.0, c)) {
+                                // measured again at the next update of the leaf
+                                this.byteSizeStale = true;
+                            }
+                            obs.observeAttributeClass(0.0, c, zeros);
+                        }
+                        observed[c] += zeros;
+                        observerSettled(i, c);
+                    }
+                }
+            }
+        }
+
+        protected void observerCreated(int attIndex) {
+        }
+
+        protected void observerSettled(int attIndex, int classVal) {
+        }
+
+        /**
+         * AutoExpandVector pads one null at a time and trims its array after
+         * each, which is quadratic for the far indices of sparse instances.
+         */
+        protected static <T> void setGrowing(AutoExpandVector<T> vector, int index, T value) {
+            if (index > vector.size()) {
+                vector.addAll(Collections.<T>nCopies(index - vector.size(), null));
+            }
+            vector.set(index, value);
+        }
+
+        public double getWeightSeen() {
+            return this.observedClassDistribution.sumOfValues();
+        }
+
+        public double getWeightSeenAtLastSplitEvaluation() {
+            return this.weightSeenAtLastSplitEvaluation;
+        }
+
+        public void setWeightSeenAtLastSplitEvaluation(double weight) {
+            this.weightSeenAtLastSplitEvaluation = weight;
+        }
+
+        /**
+         * Offers the null split, unless pre-pruning is off, and the best
+         * suggestion of every observer to ranking, in attribute order.
+         */
+        public void rankSplitSuggestions(SplitCriterion criterion, RAPHT ht,
+                SplitRanking ranking) {
+            settleSparse();
+            double[] preSplitDist = ranking.preSplitDist(this.observedClassDistribution.getArrayRef());
+            criterion = ranking.criterion(criterion, preSplitDist);
+            if (!ht.noPrePruneOption.isSet()) {
+                // add null split as an option
+                ranking.offer(new AttributeSplitSuggestion(null,
+                        new double[0][], criterion.getMeritOfSplit(
+                        preSplitDist,
+                        new double[][]{preSplitDist})));
+            }
+            int numObservers = this.attributeObservers.size();
+            int parallelThreshold = ht.parallelSplitThresholdOption.getValue();
+            if (parallelThreshold > 0 && numObservers >= parallelThreshold) {
+                // filled by attribute index, so the order matches the sequential loop
+                AttributeSplitSuggestion[] perAttribute = ranking.perAttribute(numObservers);
+                ForkJoinPool.commonPool().invoke(new SplitEvaluationTask(this.attributeObservers,
+                        criterion, preSplitDist, ht.binarySplitsOption.isSet(), perAttribute, 0, numObservers));
+                for (int i = 0; i < numObservers; i++) {
+                    if (perAttribute[i] != null) {
+                        ranking.offer(perAttribute[i]);
+                        perAttribute[i] = null;
+                    }
+                }
+            } else {
+                for (int i = 0; i < numObservers; i++) {
+                    AttributeClassObserver obs = this.attributeObservers.get(i);
+                    if (obs != null) {
+                        AttributeSplitSuggestion bestSuggestion = obs.getBestEvaluatedSplitSuggestion(criterion,
+                                preSplitDist, i, ht.binarySplitsOption.isSet());
+                        if (bestSuggestion != null) {
+                            ranking.offer(bestSuggestion);
+                        }
+                    }
+                }
+            }
+        }
+
+        public void disableAttribute(int attIndex) {
+            AttributeClassObserver obs = this.attributeObservers.get(attIndex);
+            if (obs instanceof HistogramNumericObserver) {
+                // frees its arena block
+                ((HistogramNumericObserver) obs).reset();
+            }
+            this.attributeObservers.set(attIndex,
+                    new NullAttributeClassObserver());
+        }
+    }
+
+    /**
+     * Which nominal attributes of a model are stored in a NominalSlab, and
+     * where. Built once from the header and shared by all slabs of a model.
+     */
+    public static final class NominalSlabLayout implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final int numClasses;
+
+        // per model attribute, the position among the nominal ones or -1
+        protected final int[] ordinal;
+
+        // per nominal attribute, the start of its [value][class] block
+        protected final int[] offset;
+
+        protected final int[] numValues;
+
+        protected final int numNominal;
+
+        protected final int size;
+
+        public NominalSlabLayout(Instances header) {
+            int numAttributes = header.numAttributes() - 1;
+            this.numClasses = header.numClasses();
+            this.ordinal = new int[numAttributes];
+            int[] offsets = new int[numAttributes];
+            int[] values = new int[numAttributes];
+            int nominal = 0;
+            int next = 0;
+            for (int i = 0; i < numAttributes; i++) {
+                Attribute attribute = header.attribute(modelAttIndexToInstanceAttIndex(i, header));
+                if (attribute.isNominal()) {
+                    this.ordinal[i] = nominal;
+                    offsets[nominal] = next;
+                    values[nominal] = attribute.numValues();
+                    next += attribute.numValues() * this.numClasses;
+                    nominal++;
+                } else {
+                    this.ordinal[i] = -1;
+                }
+            }
+            this.offset = Arrays.copyOf(offsets, nominal);
+            this.numValues = Arrays.copyOf(values, nominal);
+            this.numNominal = nominal;
+            this.size = next;
+        }
+    }
+
+    /**
+     * All nominal attribute counts of a leaf in one array indexed by
+     * [attribute][value][class], in place of a NominalAttributeClassObserver
+     * with a count vector per class for every attribute. valuesSeen keeps
+     * the length each of those vectors would have, so votes and split
+     * suggestions come out exactly as with the observers. Once attached to a
+     * LeafArena the weights and counts live in one arena block, the weights
+     * first, until free; valuesSeen stays on the heap.
+     */
+    public static class NominalSlab implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final NominalSlabLayout layout;
+
+        // null while the counts are in the arena
+        protected double[] counts;
+
+        // per nominal attribute and class, 0 when the class was not seen with a value
+        protected final int[] valuesSeen;
+
+        // per nominal attribute, the total and the missing weight; null while in the arena
+        protected double[] weights;
+
+        protected transient LeafArena arena;
+
+        // the arena block, -1 when there is none
+        protected transient long block = -1;
+
+        protected transient ByteBuffer blockBuffer;
+
+        protected transient int blockOffset;
+
+        public NominalSlab(NominalSlabLayout layout) {
+            this.layout = layout;
+            this.counts = new double[layout.size];
+            this.valuesSeen = new int[layout.numNominal * layout.numClasses];
+            this.weights = new double[2 * layout.numNominal];
+        }
+
+        /**
+         * A copy on the heap.
+         */
+        public NominalSlab(NominalSlab source) {
+            this.layout = source.layout;
+            this.counts = source.arena == null ? source.counts.clone() : source.readCounts();
+            this.valuesSeen = source.valuesSeen.clone();
+            this.weights = source.arena == null ? source.weights.clone() : source.readWeights();
+        }
+
+        public void clear() {
+            if (this.arena != null) {
+                this.arena.clear(this.block, blockLength());
+            } else {
+                Arrays.fill(this.counts, 0.0);
+                Arrays.fill(this.weights, 0.0);
+            }
+            Arrays.fill(this.valuesSeen, 0);
+        }
+
+        /**
+         * Keeps the weights and counts in a block of arena from now on,
+         * moving those already counted there.
+         */
+        public void attach(LeafArena arena) {
+            if (this.arena != null) {
+                return;
+            }
+            long block = arena.allocate(blockLength());
+            arena.write(block, 0, this.weights, this.weights.length);
+            arena.write(block, this.weights.length, this.counts, this.counts.length);
+            this.arena = arena;
+            this.block = block;
+            this.blockBuffer = arena.buffer(block);
+            this.blockOffset = LeafArena.offset(block);
+            this.weights = null;
+            this.counts = null;
+        }
+
+        /**
+         * Returns the arena block of a slab that is dropped for good.
+         */
+        public void free() {
+            if (this.arena != null && this.block >= 0) {
+                long block = this.block;
+                this.block = -1;
+                this.blockBuffer = null;
+                this.arena.free(block, blockLength());
+            }
+        }
+
+        private int blockLength() {
+            return 2 * this.layout.numNominal + this.layout.size;
+        }
+
+        public double count(int index) {
+            if (this.arena == null) {
+                return this.counts[index];
+            }
+            return this.blockBuffer.getDouble(this.blockOffset + 8 * (2 * this.layout.numNominal + index));
+        }
+
+        public void addCount(int index, double weight) {
+            if (this.arena == null) {
+                this.counts[index] += weight;
+            } else {
+                int position = this.blockOffset + 8 * (2 * this.layout.numNominal + index);
+                this.blockBuffer.putDouble(position, this.blockBuffer.getDouble(position) + weight);
+            }
+        }
+
+        public double weight(int index) {
+            if (this.arena == null) {
+                return this.weights[index];
+            }
+            return this.blockBuffer.getDouble(this.blockOffset + 8 * index);
+        }
+
+        public void addWeight(int index, double weight) {
+            if (this.arena == null) {
+                this.weights[index] += weight;
+            } else {
+                int position = this.blockOffset + 8 * index;
+                this.blockBuffer.putDouble(position, this.blockBuffer.getDouble(position) + weight);
+            }
+        }
+
+        /**
+         * The counts, the array itself on the heap or a copy of the arena
+         * block.
+         */
+        protected double[] readCounts() {
+            if (this.arena == null) {
+                return this.counts;
+            }
+            double[] counts = new double[this.layout.size];
+            this.arena.read(this.block, 2 * this.layout.numNominal, counts, counts.length);
+            return counts;
+        }
+
+        protected double[] readWeights() {
+            if (this.arena == null) {
+                return this.weights;
+            }
+            double[] weights = new double[2 * this.layout.numNominal];
+            this.arena.read(this.block, 0, weights, weights.length);
+            return weights;
+        }
+
+        /**
+         * Counted as the arrays it replaces when in the arena, so limits mean
+         * the same.
+         */
+        public long estimateByteSize() {
+            return ByteSizeEstimator.shallowSize(NominalSlab.class)
+                    + ByteSizeEstimator.arraySize(this.layout.size, 8)
+                    + ByteSizeEstimator.arraySize(this.valuesSeen.length, 4)
+                    + ByteSizeEstimator.arraySize(2 * this.layout.numNominal, 8);
+        }
+
+        /**
+         * Serialized copies keep their counts on the heap.
+         */
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (this.arena == null) {
+                out.defaultWriteObject();
+                return;
+            }
+            this.counts = readCounts();
+            this.weights = readWeights();
+            try {
+                out.defaultWriteObject();
+            } finally {
+                this.counts = null;
+                this.weights = null;
+            }
+        }
+    }
+
+    /**
+     * The observer of one nominal attribute of a leaf with a NominalSlab.
+     * Behaves like NominalAttributeClassObserver but reads and writes the
+     * slab, including split evaluation, which builds the post-split
+     * distributions straight from it.
+     */
+    public static class NominalSlabObserver extends AbstractOptionHandler
+            implements DiscreteAttributeClassObserver {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final NominalSlab slab;
+
+        protected final int ordinal;
+
+        public NominalSlabObserver(NominalSlab slab, int attIndex) {
+            this.slab = slab;
+            this.ordinal = slab.layout.ordinal[attIndex];
+        }
+
+        public int valuesSeen(int classVal) {
+            return this.slab.valuesSeen[this.ordinal * this.slab.layout.numClasses + classVal];
+        }
+
+        public double count(int value, int classVal) {
+            int numClasses = this.slab.layout.numClasses;
+            return this.slab.count(this.slab.layout.offset[this.ordinal] + value * numClasses + classVal);
+        }
+
+        /**
+         * Sum of the counts of a class, added in value order like
+         * DoubleVector.sumOfValues.
+         */
+        public double classWeight(int classVal) {
+            NominalSlab slab = this.slab;
+            int numClasses = slab.layout.numClasses;
+            int index = slab.layout.offset[this.ordinal] + classVal;
+            int seen = valuesSeen(classVal);
+            double sum = 0.0;
+            for (int v = 0; v < seen; v++, index += numClasses) {
+                sum += slab.count(index);
+            }
+            return sum;
+        }
+
+        @Override
+        public void observeAttributeClass(double attVal, int classVal, double weight) {
+            NominalSlab slab = this.slab;
+            if (Utils.isMissingValue(attVal)) {
+                slab.addWeight(2 * this.ordinal + 1, weight);
+            } else {
+                int numClasses = slab.layout.numClasses;
+                int value = (int) attVal;
+                int seen = this.ordinal * numClasses + classVal;
+                if (slab.valuesSeen[seen] <= value) {
+                    slab.valuesSeen[seen] = value + 1;
+                }
+                slab.addCount(slab.layout.offset[this.ordinal] + value * numClasses + classVal, weight);
+            }
+            slab.addWeight(2 * this.ordinal, weight);
+        }
+
+        @Override
+        public double probabilityOfAttributeValueGivenClass(double attVal, int classVal) {
+            if (classVal >= this.slab.layout.numClasses) {
+                return 0.0;
+            }
+            int seen = valuesSeen(classVal);
+            if (seen == 0) {
+                return 0.0;
+            }
+            int value = (int) attVal;
+            double count = value >= 0 && value < seen ? count(value, classVal) : 0.0;
+            return (count + 1.0) / (classWeight(classVal) + seen);
+        }
+
+        public double totalWeightOfClassObservations() {
+            return this.slab.weight(2 * this.ordinal);
+        }
+
+        public double weightOfObservedMissingValues() {
+            return this.slab.weight(2 * this.ordinal + 1);
+        }
+
+        @Override
+        public AttributeSplitSuggestion getBestEvaluatedSplitSuggestion(
+                SplitCriterion criterion, double[] preSplitDist, int attIndex,
+                boolean binaryOnly) {
+            int numClasses = this.slab.layout.numClasses;
+            int base = this.ordinal * numClasses;
+            int[] valuesSeen = this.slab.valuesSeen;
+            double[] counts = this.slab.readCounts();
+            int offset = this.slab.layout.offset[this.ordinal];
+            int maxValues = 0;
+            for (int c = 0; c < numClasses; c++) {
+                maxValues = Math.max(maxValues, valuesSeen[base + c]);
+            }
+            AttributeSplitSuggestion bestSuggestion = null;
+            if (!binaryOnly) {
+                double[][] postSplitDists = new double[maxValues][];
+                for (int v = 0; v < maxValues; v++) {
+                    // as long as the highest class seen with this value
+                    int length = 0;
+                    for (int c = 0; c < numClasses; c++) {
+                        if (valuesSeen[base + c] > v) {
+                            length = c + 1;
+                        }
+                    }
+                    postSplitDists[v] = Arrays.copyOfRange(counts, offset + v * numClasses,
+                            offset + v * numClasses + length);
+                }
+                double merit = criterion.getMeritOfSplit(preSplitDist, postSplitDists);
+                bestSuggestion = new AttributeSplitSuggestion(
+                        new NominalAttributeMultiwayTest(attIndex), postSplitDists, merit);
+            }
+            for (int valIndex = 0; valIndex < maxValues; valIndex++) {
+                int equalsLength = 0;
+                int notEqualLength = 0;
+                for (int c = 0; c < numClasses; c++) {
+                    int seen = valuesSeen[base + c];
+                    if (seen > valIndex) {
+                        equalsLength = c + 1;
+                    }
+                    if (seen > 1 || (seen == 1 && valIndex != 0)) {
+                        notEqualLength = c + 1;
+                    }
+                }
+                double[] equalsDist = Arrays.copyOfRange(counts, offset + valIndex * numClasses,
+                        offset + valIndex * numClasses + equalsLength);
+                double[] notEqualDist = new double[notEqualLength];
+                for (int c = 0; c < notEqualLength; c++) {
+                    int seen = valuesSeen[base + c];
+                    double sum = 0.0;
+                    for (int v = 0; v < seen; v++) {
+                        if (v != valIndex) {
+                            sum += counts[offset + v * numClasses + c];
+                        }
+                    }
+                    notEqualDist[c] = sum;
+                }
+                double[][] postSplitDists = new double[][]{equalsDist, notEqualDist};
+                double merit = criterion.getMeritOfSplit(preSplitDist, postSplitDists);
+                if (bestSuggestion == null || merit > bestSuggestion.merit) {
+                    bestSuggestion = new AttributeSplitSuggestion(
+                            new NominalAttributeBinaryTest(attIndex, valIndex), postSplitDists, merit);
+                }
+            }
+            return bestSuggestion;
+        }
+
+        /**
+         * The slab keeps class counts only, regression targets are not
+         * supported.
+         */
+        @Override
+        public void observeAttributeTarget(double attVal, double target) {
+            throw new UnsupportedOperationException(
+                    "NominalSlabObserver keeps class counts, regression targets are not supported");
+        }
+
+        @Override
+        public void getDescription(StringBuilder sb, int indent) {
+        }
+
+        @Override
+        protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+        }
+    }
+
+    /**
+     * Direct memory for leaf statistics, outside the garbage collected heap.
+     * Blocks of doubles are carved from 1 MB direct buffers, a block larger
+     * than that gets a buffer of its own, and freed blocks are kept by length
+     * for the next block of the same length, which is the common case as the
+     * leaves of a model share their layout. A block is named by a handle, the
+     * index of its buffer in the high and its byte offset in the low 32 bits.
+     * Buffers are only returned to the system with the arena. Only the
+     * training thread uses an arena: the copies other threads read, published
+     * trees, checkpoints and serialized models, keep their statistics on the
+     * heap.
+     */
+    public static final class LeafArena {
+
+        protected static final int CHUNK_BYTES = 1 << 20;
+
+        // replaced, never changed, when a buffer is added
+        protected volatile ByteBuffer[] buffers = new ByteBuffer[0];
+
+        // freed handles by block length in doubles
+        protected final HashMap<Integer, FreeList> freeLists = new HashMap<>();
+
+        // the buffer carved from and the next free byte in it
+        protected int current = -1;
+
+        protected int position;
+
+        protected long reservedBytes;
+
+        protected long usedBytes;
+
+        protected static final class FreeList {
+
+            protected long[] handles = new long[16];
+
+            protected int size;
+        }
+
+        /**
+         * A zeroed block of length doubles.
+         */
+        public long allocate(int length) {
+            int bytes = length * 8;
+            FreeList free = this.freeLists.get(length);
+            long handle;
+            if (free != null && free.size > 0) {
+                handle = free.handles[--free.size];
+                clear(handle, length);
+            } else if (bytes > CHUNK_BYTES) {
+                handle = (long) newBuffer(bytes) << 32;
+            } else {
+                if (this.current < 0 || this.position + bytes > CHUNK_BYTES) {
+                    this.current = newBuffer(CHUNK_BYTES);
+                    this.position = 0;
+                }
+                handle = ((long) this.current << 32) | this.position;
+                this.position += bytes;
+            }
+            this.usedBytes += bytes;
+            return handle;
+        }
+
+        private int newBuffer(int bytes) {
+            ByteBuffer[] buffers = Arrays.copyOf(this.buffers, this.buffers.length + 1);
+            buffers[buffers.length - 1] = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            this.buffers = buffers;
+            this.reservedBytes += bytes;
+            return buffers.length - 1;
+        }
+
+        public void free(long handle, int length) {
+            FreeList free = this.freeLists.get(length);
+            if (free == null) {
+                free = new FreeList();
+                this.freeLists.put(length, free);
+            } else if (free.size == free.handles.length) {
+                free.handles = Arrays.copyOf(free.handles, 2 * free.size);
+            }
+            free.handles[free.size++] = handle;
+            this.usedBytes -= length * 8L;
+        }
+
+        public double get(long handle, int index) {
+            return buffer(handle).getDouble(offset(handle) + 8 * index);
+        }
+
+        /**
+         * Zeroes length doubles of a block.
+         */
+        public void clear(long handle, int length) {
+            ByteBuffer buffer = buffer(handle);
+            int position = offset(handle);
+            for (int i = 0; i < length; i++, position += 8) {
+                buffer.putDouble(position, 0.0);
+            }
+        }
+
+        /**
+         * Copies length doubles of a block, from index on, into values.
+         */
+        public void read(long handle, int index, double[] values, int length) {
+            ByteBuffer buffer = buffer(handle);
+            int position = offset(handle) + 8 * index;
+            for (int i = 0; i < length; i++, position += 8) {
+                values[i] = buffer.getDouble(position);
+            }
+        }
+
+        /**
+         * Copies length doubles from one block to another.
+         */
+        public void copy(long from, int fromIndex, long to, int toIndex, int length) {
+            ByteBuffer source = buffer(from);
+            ByteBuffer target = buffer(to);
+            int sourcePosition = offset(from) + 8 * fromIndex;
+            int targetPosition = offset(to) + 8 * toIndex;
+            for (int i = 0; i < length; i++, sourcePosition += 8, targetPosition += 8) {
+                target.putDouble(targetPosition, source.getDouble(sourcePosition));
+            }
+        }
+
+        public void write(long handle, int index, double[] values, int length) {
+            ByteBuffer buffer = buffer(handle);
+            int position = offset(handle) + 8 * index;
+            for (int i = 0; i < length; i++, position += 8) {
+                buffer.putDouble(position, values[i]);
+            }
+        }
+
+        private ByteBuffer buffer(long handle) {
+            return this.buffers[(int) (handle >>> 32)];
+        }
+
+        private static int offset(long handle) {
+            return (int) handle;
+        }
+
+        public long getReservedBytes() {
+            return this.reservedBytes;
+        }
+
+        public long getUsedBytes() {
+            return this.usedBytes;
+        }
+    }
+
+    /**
+     * Numeric observer that keeps the weight of each class in a fixed number
+     * of equal-width bins, one flat array laid out bin by bin. The range
+     * is given with -f or taken from the first values seen; an adaptive
+     * range that a value falls outside of doubles its bin width, merging
+     * neighbouring bins, so an observer never grows past numBins weights per
+     * class. The split candidates are the bin boundaries, scored from running
+     * per-class sums over the bins. Once attached to a LeafArena the weights live in
+     * one arena block, the class weights first, until reset frees it.
+     */
+    public static class HistogramNumericObserver extends AbstractOptionHandler
+            implements NumericAttributeClassObserver {
+
+        private static final long serialVersionUID = 1L;
+
+        public IntOption numBinsOption = new IntOption("numBins", 'n',
+                "The number of bins.", 10, 2, Integer.MAX_VALUE);
+
+        public IntOption warmupOption = new IntOption("warmup", 'w',
+                "Number of values buffered to set an adaptive range.", 30, 1, Integer.MAX_VALUE);
+
+        public FlagOption fixedRangeOption = new FlagOption("fixedRange", 'f',
+                "Use the range [lower, upper] and count values outside it in the edge bins.");
+
+        public FloatOption lowerOption = new FloatOption("lower", 'l',
+                "Lower end of a fixed range.", 0.0, -Double.MAX_VALUE, Double.MAX_VALUE);
+
+        public FloatOption upperOption = new FloatOption("upper", 'u',
+                "Upper end of a fixed range.", 1.0, -Double.MAX_VALUE, Double.MAX_VALUE);
+
+        protected int numBins;
+
+        protected int numClasses;
+
+        protected double lower;
+
+        // zero until the range is set
+        protected double width;
+
+        // weights[b * numClasses + c], null while the weights are in the arena
+        protected double[] weights;
+
+        protected double[] classWeights;
+
+        protected transient LeafArena arena;
+
+        // the arena block and its length in doubles, -1 when there is none
+        protected transient long block = -1;
+
+        protected transient int blockLength;
+
+        // where the block is, for add
+        protected transient ByteBuffer blockBuffer;
+
+        protected transient int blockOffset;
+
+        // values seen before an adaptive range is set
+        protected double[] pendingValues;
+
+        protected int[] pendingClasses;
+
+        protected double[] pendingWeights;
+
+        protected int numPending;
+
+        public HistogramNumericObserver() {
+        }
+
+        /**
+         * Copies the state of source and shares its options, which are only
+         * read once the observer is in use, so every leaf does not carry its
+         * own set.
+         */
+        public HistogramNumericObserver(HistogramNumericObserver source) {
+            this.numBinsOption = source.numBinsOption;
+            this.warmupOption = source.warmupOption;
+            this.fixedRangeOption = source.fixedRangeOption;
+            this.lowerOption = source.lowerOption;
+            this.upperOption = source.upperOption;
+            this.numBins = source.numBins;
+            this.numClasses = source.numClasses;
+            this.lower = source.lower;
+            this.width = source.width;
+            if (source.arena != null) {
+                this.weights = source.readWeights();
+                this.classWeights = source.readClassWeights();
+            } else {
+                this.weights = source.weights != null ? source.weights.clone() : null;
+                this.classWeights = source.classWeights != null ? source.classWeights.clone() : null;
+            }
+            this.pendingValues = source.pendingValues != null ? source.pendingValues.clone() : null;
+            this.pendingClasses = source.pendingClasses != null ? source.pendingClasses.clone() : null;
+            this.pendingWeights = source.pendingWeights != null ? source.pendingWeights.clone() : null;
+            this.numPending = source.numPending;
+        }
+
+        @Override
+        public HistogramNumericObserver copy() {
+            return new HistogramNumericObserver(this);
+        }
+
+        /**
+         * Forgets everything observed, keeping the options and the arena.
+         */
+        public void reset() {
+            freeBlock();
+            this.numBins = 0;
+            this.numClasses = 0;
+            this.lower = 0.0;
+            this.width = 0.0;
+            this.weights = null;
+            this.classWeights = null;
+            this.pendingValues = null;
+            this.pendingClasses = null;
+            this.pendingWeights = null;
+            this.numPending = 0;
+        }
+
+        /**
+         * Keeps the weights in blocks of arena from now on, moving those
+         * already counted there.
+         */
+        public void attach(LeafArena arena) {
+            if (this.arena == arena) {
+                return;
+            }
+            double[] weights = readWeights();
+            double[] classWeights = readClassWeights();
+            freeBlock();
+            this.arena = arena;
+            this.weights = null;
+            this.classWeights = null;
+            if (weights != null) {
+                store(weights, classWeights);
+            }
+        }
+
+        /**
+         * The weights, the array itself on the heap or a copy of the arena
+         * block; null before the range is set.
+         */
+        protected double[] readWeights() {
+            if (this.arena == null) {
+                return this.weights;
+            }
+            if (this.block < 0) {
+                return null;
+            }
+            double[] weights = new double[this.blockLength - this.numClasses];
+            this.arena.read(this.block, this.numClasses, weights, weights.length);
+            return weights;
+        }
+
+        protected double[] readClassWeights() {
+            if (this.arena == null) {
+                return this.classWeights;
+            }
+            if (this.block < 0) {
+                return null;
+            }
+            double[] classWeights = new double[this.numClasses];
+            this.arena.read(this.block, 0, classWeights, classWeights.length);
+            return classWeights;
+        }
+
+        private void store(double[] weights, double[] classWeights) {
+            if (this.arena == null) {
+                this.weights = weights;
+                this.classWeights = classWeights;
+                return;
+            }
+            freeBlock();
+            int length = classWeights.length + weights.length;
+            long block = this.arena.allocate(length);
+            this.arena.write(block, 0, classWeights, classWeights.length);
+            this.arena.write(block, classWeights.length, weights, weights.length);
+            setBlock(block, length);
+        }
+
+        /**
+         * Writes back weights changed in place, a copy from readWeights when
+         * they are in the arena.
+         */
+        private void storeWeights(double[] weights) {
+            if (this.arena != null) {
+                this.arena.write(this.block, this.numClasses, weights, weights.length);
+            }
+        }
+
+        private void setBlock(long block, int length) {
+            this.blockLength = length;
+            this.blockBuffer = this.arena.buffer(block);
+            this.blockOffset = LeafArena.offset(block);
+            this.block = block;
+        }
+
+        private void freeBlock() {
+            if (this.arena != null && this.block >= 0) {
+                long block = this.block;
+                this.block = -1;
+                this.blockBuffer = null;
+                this.arena.free(block, this.blockLength);
+            }
+        }
+
+        /**
+         * Serialized copies keep their weights on the heap.
+         */
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (this.arena == null) {
+                out.defaultWriteObject();
+                return;
+            }
+            this.weights = readWeights();
+            this.classWeights = readClassWeights();
+            try {
+                out.defaultWriteObject();
+            } finally {
+                this.weights = null;
+                this.classWeights = null;
+            }
+        }
+
+        public double getLower() {
+            return this.lower;
+        }
+
+        public double getUpper() {
+            return this.lower + this.numBins * this.width;
+        }
+
+        protected boolean hasFixedRange() {
+            return this.fixedRangeOption.isSet()
+                    && this.upperOption.getValue() > this.lowerOption.getValue();
+        }
+
+        @Override
+        public void observeAttributeClass(double attVal, int classVal, double weight) {
+            if (Utils.isMissingValue(attVal)) {
+                return;
+            }
+            if (this.width == 0.0) {
+                if (hasFixedRange()) {
+                    setRange(this.lowerOption.getValue(), this.upperOption.getValue());
+                } else {
+                    pend(attVal, classVal, weight);
+                    return;
+                }
+            }
+            add(attVal, classVal, weight);
+        }
+
+        private void pend(double attVal, int classVal, double weight) {
+            if (this.pendingValues == null) {
+                int warmup = this.warmupOption.getValue();
+                this.pendingValues = new double[warmup];
+                this.pendingClasses = new int[warmup];
+                this.pendingWeights = new double[warmup];
+            }
+            this.pendingValues[this.numPending] = attVal;
+            this.pendingClasses[this.numPending] = classVal;
+            this.pendingWeights[this.numPending] = weight;
+            this.numPending++;
+            if (this.numPending == this.pendingValues.length) {
+                settle();
+            }
+        }
+
+        /**
+         * Sets the range from the buffered values and moves them into the
+         * bins.
+         */
+        protected void settle() {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < this.numPending; i++) {
+                min = Math.min(min, this.pendingValues[i]);
+                max = Math.max(max, this.pendingValues[i]);
+            }
+            if (Double.isInfinite(min) || Double.isInfinite(max)) {
+                // nothing finite to size the range from
+                min = 0.0;
+                max = 1.0;
+            } else if (max == min) {
+                max = min + Math.max(Math.abs(min), 1.0);
+            }
+            setRange(min, max);
+            for (int i = 0; i < this.numPending; i++) {
+                add(this.pendingValues[i], this.pendingClasses[i], this.pendingWeights[i]);
+            }
+            this.pendingValues = null;
+            this.pendingClasses = null;
+            this.pendingWeights = null;
+            this.numPending = 0;
+        }
+
+        private void setRange(double min, double max) {
+            this.numBins = this.numBinsOption.getValue();
+            this.lower = min;
+            this.width = (max - min) / this.numBins;
+            if (this.arena != null) {
+                freeBlock();
+                int length = this.numClasses * (this.numBins + 1);
+                setBlock(this.arena.allocate(length), length);
+            } else {
+                this.weights = new double[this.numClasses * this.numBins];
+                this.classWeights = new double[this.numClasses];
+            }
+        }
+
+        private void add(double attVal, int classVal, double weight) {
+            if (classVal >= this.numClasses) {
+                grow(classVal + 1);
+            }
+            if (!hasFixedRange() && !Double.isInfinite(attVal)) {
+                while (attVal < this.lower) {
+                    widenDown();
+                }
+                while (attVal > getUpper()) {
+                    widenUp();
+                }
+            }
+            int index = bin(attVal) * this.numClasses + classVal;
+            if (this.arena != null) {
+                ByteBuffer buffer = this.blockBuffer;
+                int position = this.blockOffset + 8 * (this.numClasses + index);
+                buffer.putDouble(position, buffer.getDouble(position) + weight);
+                position = this.blockOffset + 8 * classVal;
+                buffer.putDouble(position, buffer.getDouble(position) + weight);
+            } else {
+                this.weights[index] += weight;
+                this.classWeights[classVal] += weight;
+            }
+        }
+
+        private void grow(int numClasses) {
+            int previous = this.numClasses;
+            if (this.arena == null) {
+                double[] weights = new double[numClasses * this.numBins];
+                for (int b = 0; b < this.numBins; b++) {
+                    System.arraycopy(this.weights, b * previous, weights, b * numClasses, previous);
+                }
+                this.numClasses = numClasses;
+                this.weights = weights;
+                this.classWeights = Arrays.copyOf(this.classWeights, numClasses);
+                return;
+            }
+            long block = this.arena.allocate(numClasses * (this.numBins + 1));
+            this.arena.copy(this.block, 0, block, 0, previous);
+            for (int b = 0; b < this.numBins; b++) {
+                this.arena.copy(this.block, previous + b * previous, block, numClasses + b * numClasses, previous);
+            }
+            freeBlock();
+            this.numClasses = numClasses;
+            setBlock(block, numClasses * (this.numBins + 1));
+        }
+
+        protected int bin(double attVal) {
+            double position = (attVal - this.lower) / this.width;
+            if (!(position > 0.0)) {
+                return 0;
+            }
+            return position >= this.numBins ? this.numBins - 1 : (int) position;
+        }
+
+        /**
+         * Doubles the bin width keeping the lower end, bins 2t and 2t + 1
+         * become bin t.
+         */
+        private void widenUp() {
+            int numBins = this.numBins;
+            int numClasses = this.numClasses;
+            double[] weights = readWeights();
+            for (int t = 0; t < numBins; t++) {
+                int j = 2 * t;
+                for (int c = 0; c < numClasses; c++) {
+                    double sum = 0.0;
+                    if (j < numBins) {
+                        sum += weights[j * numClasses + c];
+                    }
+                    if (j + 1 < numBins) {
+                        sum += weights[(j + 1) * numClasses + c];
+                    }
+                    weights[t * numClasses + c] = sum;
+                }
+            }
+            storeWeights(weights);
+            this.width *= 2.0;
+        }
+
+        /**
+         * Doubles the bin width keeping the upper end, bin j becomes bin
+         * (numBins + j) / 2.
+         */
+        private void widenDown() {
+            int numBins = this.numBins;
+            int numClasses = this.numClasses;
+            double[] weights = readWeights();
+            for (int t = numBins - 1; t >= 0; t--) {
+                int j = 2 * t - numBins;
+                for (int c = 0; c < numClasses; c++) {
+                    double sum = 0.0;
+                    if (j >= 0) {
+                        sum += weights[j * numClasses + c];
+                    }
+                    if (j + 1 >= 0) {
+                        sum += weights[(j + 1) * numClasses + c];
+                    }
+                    weights[t * numClasses + c] = sum;
+                }
+            }
+            storeWeights(weights);
+            this.lower -= this.numBins * this.width;
+            this.width *= 2.0;
+        }
+
+        /**
+         * Reads every array once, predictions may run while another thread
+         * trains the leaf and settles or grows them.
+         */
+        @Override
+        public double probabilityOfAttributeValueGivenClass(double attVal, int classVal) {
+            double[] pendingValues = this.pendingValues;
+            int[] pendingClasses = this.pendingClasses;
+            double[] pendingWeights = this.pendingWeights;
+            if (pendingValues != null && pendingClasses != null && pendingWeights != null) {
+                return pendingProbability(pendingValues, pendingClasses, pendingWeights,
+                        Math.min(this.numPending, pendingValues.length), attVal, classVal);
+            }
+            LeafArena arena = this.arena;
+            if (arena != null) {
+                long block = this.block;
+                int numClasses = this.numClasses;
+                int numBins = this.numBins;
+                double classWeight = block >= 0 && classVal < numClasses ? arena.get(block, classVal) : 0.0;
+                if (classWeight <= 0.0) {
+                    return 0.0;
+                }
+                double count = arena.get(block, numClasses + bin(attVal) * numClasses + classVal);
+                return (count + 1.0) / (classWeight + numBins);
+            }
+            double[] weights = this.weights;
+            double[] classWeights = this.classWeights;
+            int numBins = this.numBins;
+            if (weights == null || classWeights == null || numBins == 0 || classVal >= classWeights.length
+                    || classWeights[classVal] <= 0.0) {
+                return 0.0;
+            }
+            // the stride of the array read, which a class growing meanwhile replaces
+            int numClasses = weights.length / numBins;
+            double count = classVal < numClasses ? weights[bin(attVal) * numClasses + classVal] : 0.0;
+            return (count + 1.0) / (classWeights[classVal] + numBins);
+        }
+
+        /**
+         * The same estimate over the buffered values, with bins of the width
+         * the range would get if it were set now.
+         */
+        private double pendingProbability(double[] values, int[] classes, double[] weights,
+                int numPending, double attVal, int classVal) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double classWeight = 0.0;
+            for (int i = 0; i < numPending; i++) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+                if (classes[i] == classVal) {
+                    classWeight += weights[i];
+                }
+            }
+            if (classWeight <= 0.0) {
+                return 0.0;
+            }
+            int numBins = this.numBinsOption.getValue();
+            double halfWidth = (max - min) / (2 * numBins);
+            double count = 0.0;
+            for (int i = 0; i < numPending; i++) {
+                if (classes[i] == classVal && Math.abs(values[i] - attVal) <= halfWidth) {
+                    count += weights[i];
+                }
+            }
+            return (count + 1.0) / (classWeight + numBins);
+        }
+
+        /**
+         * Scores every bin boundary with a non-empty bin below it and weight
+         * above it. The weights are turned into running per-class sums bin by
+         * bin, so the weight below each boundary is one row and the weight
+         * above it the last row minus that one, filled into the same two
+         * arrays for every candidate; only the best candidate's distributions
+         * are copied. Information gain is scored by PreSplitInfoGain.binaryMerit.
+         */
+        @Override
+        public AttributeSplitSuggestion getBestEvaluatedSplitSuggestion(
+                SplitCriterion criterion, double[] preSplitDist, int attIndex,
+                boolean binaryOnly) {
+            if (this.width == 0.0) {
+                if (this.numPending == 0) {
+                    return null;
+                }
+                settle();
+            }
+            int numBins = this.numBins;
+            int numClasses = this.numClasses;
+            // the weights, turned into running sums in place
+            double[] below = new double[numClasses * numBins];
+            if (this.arena != null) {
+                this.arena.read(this.block, numClasses, below, below.length);
+            } else {
+                System.arraycopy(this.weights, 0, below, 0, below.length);
+            }
+            double[] binWeights = new double[numBins];
+            for (int b = 0, row = 0; b < numBins; b++, row += numClasses) {
+                double binWeight = 0.0;
+                for (int c = 0; c < numClasses; c++) {
+                    binWeight += below[row + c];
+                }
+                binWeights[b] = binWeight;
+                if (b > 0) {
+                    for (int c = 0; c < numClasses; c++) {
+                        below[row + c] += below[row - numClasses + c];
+                    }
+                }
+            }
+            int last = numBins - 1;
+            while (last > 0 && binWeights[last] == 0.0) {
+                last--;
+            }
+            PreSplitInfoGain infoGain = criterion instanceof PreSplitInfoGain
+                    && ((PreSplitInfoGain) criterion).preSplitDist == preSplitDist
+                    ? (PreSplitInfoGain) criterion : null;
+            double[] left = new double[numClasses];
+            double[] right = new double[numClasses];
+            double[][] postSplitDists = new double[][]{left, right};
+            int lastRow = (numBins - 1) * numClasses;
+            AttributeSplitSuggestion bestSuggestion = null;
+            for (int k = 1; k <= last; k++) {
+                if (binWeights[k - 1] == 0.0) {
+                    continue;
+                }
+                int row = (k - 1) * numClasses;
+                for (int c = 0; c < numClasses; c++) {
+                    left[c] = below[row + c];
+                    right[c] = below[lastRow + c] - left[c];
+                }
+                double merit = infoGain != null ? infoGain.binaryMerit(left, right)
+                        : criterion.getMeritOfSplit(preSplitDist, postSplitDists);
+                if (bestSuggestion == null || merit > bestSuggestion.merit) {
+                    double[][] dists = new double[][]{left.clone(), right.clone()};
+                    bestSuggestion = new AttributeSplitSuggestion(
+                            new NumericAttributeBinaryTest(attIndex, this.lower + k * this.width, false),
+                            dists, merit);
+                    bestSuggestion.binIndex = k - 1;
+                }
+            }
+            return bestSuggestion;
+        }
+
+        /**
+         * The bins keep class weights only, regression targets are not
+         * supported.
+         */
+        @Override
+        public void observeAttributeTarget(double attVal, double target) {
+            throw new UnsupportedOperationException(
+                    "HistogramNumericObserver keeps class weights, regression targets are not supported");
+        }
+
+        @Override
+        public void getDescription(StringBuilder sb, int indent) {
+        }
+
+        @Override
+        protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+        }
+    }
+
+    /**
+     * Learning nodes that left the tree, with the observers they held, kept
+     * to be reset into new leaves instead of allocating them. A node is only
+     * staged when it leaves: the training path may still hold it (a leaf
+     * that just split, the routed leaves of a batch), so it is reset and
+     * made available at the next training call. Nodes a background split
+     * attempt still reads are not taken. Only nodes of the class
+     * newLearningNode creates, and observers of the classes the estimator
+     * options create, are kept; histogram observers and nominal slabs that
+     * are not still free their arena blocks.
+     */
+    protected static class NodePool {
+
+        protected final int capacity;
+
+        protected final int observerCapacity;
+
+        protected final Class<?> nodeClass;
+
+        protected final Class<?> numericClass;
+
+        protected final Class<?> nominalClass;
+
+        protected final ArrayDeque<ActiveLearningNode> staged = new ArrayDeque<>();
+
+        protected final ArrayDeque<ActiveLearningNode> nodes = new ArrayDeque<>();
+
+        protected final ArrayDeque<AttributeClassObserver> numericObservers = new ArrayDeque<>();
+
+        protected final ArrayDeque<AttributeClassObserver> nominalObservers = new ArrayDeque<>();
+
+        public NodePool(int capacity, int observerCapacity, Class<?> nodeClass,
+                Class<?> numericClass, Class<?> nominalClass) {
+            this.capacity = capacity;
+            this.observerCapacity = observerCapacity;
+            this.nodeClass = nodeClass;
+            this.numericClass = numericClass;
+            this.nominalClass = nominalClass;
+        }
+
+        /**
+         * Stages the learning nodes of a subtree that left the tree.
+         */
+        public void offerSubtree(Node node) {
+            if (node instanceof SplitNode) {
+                for (Node child : ((SplitNode) node).children) {
+                    if (child != null) {
+                        offerSubtree(child);
+                    }
+                }
+            } else if (node instanceof ActiveLearningNode) {
+                ActiveLearningNode leaf = (ActiveLearningNode) node;
+                if (leaf.pendingSplit == null) {
+                    this.staged.add(leaf);
+                }
+            }
+        }
+
+        /**
+         * Hands the observers of the staged nodes to the observer pools and
+         * keeps the nodes, up to capacity.
+         */
+        public void recycleStaged() {
+            ActiveLearningNode node;
+            while ((node = this.staged.poll()) != null) {
+                node.release(this);
+                if (node.getClass() == this.nodeClass && this.nodes.size() < this.capacity) {
+                    this.nodes.add(node);
+                } else if (node.nominalSlab != null) {
+                    node.nominalSlab.free();
+                }
+            }
         }
 
-        @Override
-        public int calcByteSize() {
-            return super.calcByteSize()
-                    + (int) (SizeOf.fullSizeOf(this.attributeObservers));
+        public ActiveLearningNode poll(double[] initialClassObservations) {
+            ActiveLearningNode node = this.nodes.poll();
+            if (node != null) {
+                node.reset(initialClassObservations);
+            }
+            return node;
         }
 
-        @Override
-        public void learnFromInstance(Instance inst, RAPHT ht) {
-            this.lastAccess = ht.instancesSeen;
-            if (!this.isInitialized) {
-                this.attributeObservers = new AutoExpandVector<>(inst.numAttributes());
-                this.isInitialized = true;
+        public AttributeClassObserver pollNumeric() {
+            return this.numericObservers.poll();
+        }
+
+        public AttributeClassObserver pollNominal() {
+            return this.nominalObservers.poll();
+        }
+
+        public void offerObserver(AttributeClassObserver obs) {
+            ArrayDeque<AttributeClassObserver> pool = null;
+            if (obs.getClass() == this.numericClass) {
+                pool = this.numericObservers;
+            } else if (obs.getClass() == this.nominalClass) {
+                pool = this.nominalObservers;
+            }
+            if (pool != null && pool.size() < this.observerCapacity && resetObserver(obs)) {
+                pool.add(obs);
+            } else if (obs instanceof HistogramNumericObserver) {
+                ((HistogramNumericObserver) obs).reset();
             }
+        }
 
-            this.observedClassDistribution.addToValue((int) inst.classValue(),
-                    inst.weight());
-            for (int i = 0; i < inst.numAttributes() - 1; i++) {
-                int instAttIndex = modelAttIndexToInstanceAttIndex(i, inst);
-                AttributeClassObserver obs = this.attributeObservers.get(i);
-                if (obs == null) {
-                    obs = inst.attribute(instAttIndex).isNominal() ? ht.newNominalClassObserver() : ht.newNumericClassObserver();
-                    this.attributeObservers.set(i, obs);
+        /**
+         * Returns an observer to the state of a fresh copy of its prototype,
+         * false for types it does not know.
+         */
+        @SuppressWarnings("unchecked")
+        protected static boolean resetObserver(AttributeClassObserver obs) {
+            try {
+                if (obs.getClass() == GaussianNumericAttributeClassObserver.class) {
+                    Checkpoint.initFields();
+                    // the bounds of a class are only read once it has an estimator again
+                    Arrays.fill(((DoubleVector) Checkpoint.gaussianMin.get(obs)).getArrayRef(), 0.0);
+                    Arrays.fill(((DoubleVector) Checkpoint.gaussianMax.get(obs)).getArrayRef(), 0.0);
+                    ((AutoExpandVector<GaussianEstimator>) Checkpoint.gaussianEstimators.get(obs)).clear();
+                    return true;
+                } else if (obs.getClass() == NominalAttributeClassObserver.class) {
+                    Checkpoint.initFields();
+                    Checkpoint.nominalTotalWeight.setDouble(obs, 0.0);
+                    Checkpoint.nominalMissingWeight.setDouble(obs, 0.0);
+                    ((NominalAttributeClassObserver) obs).attValDistPerClass.clear();
+                    return true;
+                } else if (obs.getClass() == HistogramNumericObserver.class) {
+                    ((HistogramNumericObserver) obs).reset();
+                    return true;
+                } else if (obs.getClass() == NullAttributeClassObserver.class) {
+                    return true;
                 }
-                obs.observeAttributeClass(inst.value(instAttIndex), (int) inst.classValue(), inst.weight());
+            } catch (IOException | IllegalAccessException e) {
+                // not reusable
             }
+            return false;
         }
+    }
 
-        public double getWeightSeen() {
-            return this.observedClassDistribution.sumOfValues();
+    /**
+     * Scratch of the split attempts of one thread. Keeps the two best
+     * suggestions offered, ties going to the later one as after the stable
+     * ascending sort this replaces, and, for removePoorAtts, the attribute
+     * and merit of every single attribute suggestion. The buffers are kept
+     * between attempts, the suggestions are dropped by clear.
+     */
+    protected static final class SplitRanking {
+
+        protected AttributeSplitSuggestion best;
+
+        protected AttributeSplitSuggestion second;
+
+        protected int numSuggestions;
+
+        protected boolean recordAttributes;
+
+        protected int[] attributes = new int[16];
+
+        protected double[] merits = new double[16];
+
+        protected int numRecorded;
+
+        protected double[] preSplitDist = new double[0];
+
+        protected AttributeSplitSuggestion[] perAttribute = new AttributeSplitSuggestion[0];
+
+        protected final PreSplitInfoGain infoGain = new PreSplitInfoGain();
+
+        // the split confidence logInverseConfidence was computed for
+        protected double confidence = Double.NaN;
+
+        protected double logInverseConfidence;
+
+        public void start(boolean recordAttributes) {
+            this.recordAttributes = recordAttributes;
         }
 
-        public double getWeightSeenAtLastSplitEvaluation() {
-            return this.weightSeenAtLastSplitEvaluation;
+        public void clear() {
+            this.best = null;
+            this.second = null;
+            this.numSuggestions = 0;
+            this.numRecorded = 0;
         }
 
-        public void setWeightSeenAtLastSplitEvaluation(double weight) {
-            this.weightSeenAtLastSplitEvaluation = weight;
+        public void offer(AttributeSplitSuggestion suggestion) {
+            this.numSuggestions++;
+            if (this.best == null || Double.compare(suggestion.merit, this.best.merit) >= 0) {
+                this.second = this.best;
+                this.best = suggestion;
+            } else if (this.second == null || Double.compare(suggestion.merit, this.second.merit) >= 0) {
+                this.second = suggestion;
+            }
+            if (this.recordAttributes && suggestion.splitTest != null) {
+                int[] splitAtts = suggestion.splitTest.getAttsTestDependsOn();
+                if (splitAtts.length == 1) {
+                    if (this.numRecorded == this.attributes.length) {
+                        this.attributes = Arrays.copyOf(this.attributes, 2 * this.numRecorded);
+                        this.merits = Arrays.copyOf(this.merits, 2 * this.numRecorded);
+                    }
+                    this.attributes[this.numRecorded] = splitAtts[0];
+                    this.merits[this.numRecorded] = suggestion.merit;
+                    this.numRecorded++;
+                }
+            }
         }
 
-        public AttributeSplitSuggestion[] getBestSplitSuggestions(
-                SplitCriterion criterion, RAPHT ht) {
-            List<AttributeSplitSuggestion> bestSuggestions = new LinkedList<>();
-            double[] preSplitDist = this.observedClassDistribution.getArrayCopy();
-            if (!ht.noPrePruneOption.isSet()) {
-                // add null split as an option
-                bestSuggestions.add(new AttributeSplitSuggestion(null,
-                        new double[0][], criterion.getMeritOfSplit(
-                        preSplitDist,
-                        new double[][]{preSplitDist})));
+        /**
+         * A copy of the class distribution of a leaf, in a buffer kept while
+         * the number of classes stays the same.
+         */
+        public double[] preSplitDist(double[] classDistribution) {
+            if (this.preSplitDist.length != classDistribution.length) {
+                this.preSplitDist = new double[classDistribution.length];
             }
-            for (int i = 0; i < this.attributeObservers.size(); i++) {
-                AttributeClassObserver obs = this.attributeObservers.get(i);
-                if (obs != null) {
-                    AttributeSplitSuggestion bestSuggestion = obs.getBestEvaluatedSplitSuggestion(criterion,
-                            preSplitDist, i, ht.binarySplitsOption.isSet());
-                    if (bestSuggestion != null) {
-                        bestSuggestions.add(bestSuggestion);
+            System.arraycopy(classDistribution, 0, this.preSplitDist, 0, classDistribution.length);
+            return this.preSplitDist;
+        }
+
+        /**
+         * The two best suggestions offered, best last, as the ranking of all
+         * of them would end; only the best when it was the only one, null
+         * when there was none.
+         */
+        public AttributeSplitSuggestion[] top() {
+            if (this.numSuggestions == 0) {
+                return null;
+            }
+            if (this.numSuggestions == 1) {
+                return new AttributeSplitSuggestion[]{this.best};
+            }
+            return new AttributeSplitSuggestion[]{this.second, this.best};
+        }
+
+        public AttributeSplitSuggestion[] perAttribute(int numObservers) {
+            if (this.perAttribute.length < numObservers) {
+                this.perAttribute = new AttributeSplitSuggestion[numObservers];
+            }
+            return this.perAttribute;
+        }
+
+        /**
+         * The criterion to evaluate an attempt with: plain information gain
+         * is replaced by one that has the entropy of preSplitDist at hand.
+         */
+        public SplitCriterion criterion(SplitCriterion criterion, double[] preSplitDist) {
+            if (criterion.getClass() != InfoGainSplitCriterion.class) {
+                return criterion;
+            }
+            this.infoGain.minBranchFracOption = ((InfoGainSplitCriterion) criterion).minBranchFracOption;
+            this.infoGain.preSplitDist = preSplitDist;
+            this.infoGain.preSplitEntropy = InfoGainSplitCriterion.computeEntropy(preSplitDist);
+            return this.infoGain;
+        }
+
+        /**
+         * computeHoeffdingBound, with the logarithm of the confidence kept
+         * while it does not change.
+         */
+        public double hoeffdingBound(double range, double confidence, double n) {
+            if (confidence != this.confidence) {
+                this.logInverseConfidence = Math.log(1.0 / confidence);
+                this.confidence = confidence;
+            }
+            return Math.sqrt(((range * range) * this.logInverseConfidence) / (2.0 * n));
+        }
+    }
+
+    /**
+     * Information gain that uses the entropy of one class distribution,
+     * computed once per split attempt, instead of computing it for every
+     * candidate split of every attribute. Any other distribution is
+     * evaluated as usual.
+     */
+    protected static final class PreSplitInfoGain extends InfoGainSplitCriterion {
+
+        private static final long serialVersionUID = 1L;
+
+        protected double[] preSplitDist;
+
+        protected double preSplitEntropy;
+
+        @Override
+        public double getMeritOfSplit(double[] preSplitDist, double[][] postSplitDists) {
+            if (preSplitDist != this.preSplitDist) {
+                return super.getMeritOfSplit(preSplitDist, postSplitDists);
+            }
+            if (numSubsetsGreaterThanFrac(postSplitDists, this.minBranchFracOption.getValue()) < 2) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return this.preSplitEntropy - computeEntropy(postSplitDists);
+        }
+
+        /**
+         * getMeritOfSplit of preSplitDist into left and right, the
+         * subsets, entropies and weights summed in one pass over the classes
+         * in the order InfoGainSplitCriterion sums them, so the merit is the
+         * same to the last bit.
+         */
+        public double binaryMerit(double[] left, double[] right) {
+            double leftWeight = 0.0;
+            double rightWeight = 0.0;
+            double leftEntropy = 0.0;
+            double rightEntropy = 0.0;
+            double leftPositive = 0.0;
+            double rightPositive = 0.0;
+            for (int c = 0; c < left.length; c++) {
+                double l = left[c];
+                double r = right[c];
+                leftWeight += l;
+                rightWeight += r;
+                if (l > 0.0) {
+                    leftEntropy -= l * Utils.log2(l);
+                    leftPositive += l;
+                }
+                if (r > 0.0) {
+                    rightEntropy -= r * Utils.log2(r);
+                    rightPositive += r;
+                }
+            }
+            double totalWeight = 0.0 + leftWeight + rightWeight;
+            double minBranchFrac = this.minBranchFracOption.getValue();
+            if (!(leftWeight / totalWeight > minBranchFrac && rightWeight / totalWeight > minBranchFrac)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            leftEntropy = leftPositive > 0.0 ? (leftEntropy + leftPositive * Utils.log2(leftPositive)) / leftPositive : 0.0;
+            rightEntropy = rightPositive > 0.0 ? (rightEntropy + rightPositive * Utils.log2(rightPositive)) / rightPositive : 0.0;
+            return this.preSplitEntropy - (0.0 + leftWeight * leftEntropy + rightWeight * rightEntropy) / totalWeight;
+        }
+    }
+
+    /**
+     * Evaluates the observers in [from, to), halving the range until it is
+     * small enough to run sequentially. Observers and split criteria are only
+     * read during evaluation.
+     */
+    protected static class SplitEvaluationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        protected static final int SEQUENTIAL_ATTRIBUTES = 4;
+
+        protected final AutoExpandVector<AttributeClassObserver> observers;
+
+        protected final SplitCriterion criterion;
+
+        protected final double[] preSplitDist;
+
+        protected final boolean binaryOnly;
+
+        protected final AttributeSplitSuggestion[] results;
+
+        protected final int from;
+
+        protected final int to;
+
+        public SplitEvaluationTask(AutoExpandVector<AttributeClassObserver> observers,
+                SplitCriterion criterion, double[] preSplitDist, boolean binaryOnly,
+                AttributeSplitSuggestion[] results, int from, int to) {
+            this.observers = observers;
+            this.criterion = criterion;
+            this.preSplitDist = preSplitDist;
+            this.binaryOnly = binaryOnly;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= SEQUENTIAL_ATTRIBUTES) {
+                for (int i = this.from; i < this.to; i++) {
+                    AttributeClassObserver obs = this.observers.get(i);
+                    if (obs != null) {
+                        this.results[i] = obs.getBestEvaluatedSplitSuggestion(this.criterion,
+                                this.preSplitDist, i, this.binaryOnly);
                     }
                 }
+            } else {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new SplitEvaluationTask(this.observers, this.criterion, this.preSplitDist,
+                                this.binaryOnly, this.results, this.from, middle),
+                        new SplitEvaluationTask(this.observers, this.criterion, this.preSplitDist,
+                                this.binaryOnly, this.results, middle, this.to));
             }
-            return bestSuggestions.toArray(new AttributeSplitSuggestion[bestSuggestions.size()]);
         }
+    }
 
-        public void disableAttribute(int attIndex) {
-            this.attributeObservers.set(attIndex,
-                    new NullAttributeClassObserver());
+    /**
+     * Outcome of evaluating the split suggestions of a leaf.
+     */
+    public static class SplitDecision {
+
+        // the two best suggestions, best last, see SplitRanking.top
+        public AttributeSplitSuggestion[] suggestions;
+
+        public boolean shouldSplit;
+
+        public Set<Integer> poorAtts;
+    }
+
+    /**
+     * Split attempt running on the background worker. The leaf is not
+     * updated until the decision is applied; the instances it receives in the
+     * meantime are kept here and trained once the decision is in place.
+     */
+    protected static class PendingSplit {
+
+        protected final ActiveLearningNode node;
+
+        protected final Future<SplitDecision> decision;
+
+        protected final long submitTime;
+
+        protected final List<Instance> carried = new ArrayList<>();
+
+        public PendingSplit(ActiveLearningNode node, Future<SplitDecision> decision) {
+            this.node = node;
+            this.decision = decision;
+            this.submitTime = System.nanoTime();
         }
     }
 
     protected Node treeRoot;
 
+    // the byteSize of every node in the tree, summed as nodes enter, leave and grow
+    protected volatile long treeByteSize;
+
     protected int decisionNodeCount;
 
     protected int activeLeafNodeCount;
@@ -506,6 +4000,11 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
     protected String numbinOutputFile;
 
+    protected transient SplitEventLog splitEventLog;
+
+    // sizes come from ByteSizeEstimator instead of the sizeofag agent
+    protected boolean analyticByteSize;
+
     protected int learnPruned = 0;
     protected int splitPruned = 0;
 
@@ -514,7 +4013,144 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
     protected int maxNodeSize = 0;
 
+    protected long sweepCount = 0;
+    protected long sweepVisitedNodes = 0;
+
+    // adaptive prune window: smoothed share of checks that pruned, and what the last check saw
+    protected static final double WINDOW_HIT_SMOOTHING = 0.2;
+    protected static final double WINDOW_LOW_HIT_RATE = 0.1;
+    protected static final double WINDOW_HIGH_HIT_RATE = 0.5;
+    // checks that prune nothing may take at most this share of the training time
+    protected static final double WINDOW_COST_SHARE = 0.01;
+    protected static final double WINDOW_GROWTH = 1.25;
+    protected static final double WINDOW_SHRINK = 0.8;
+    protected double sweepHitRate = 0.5;
+    protected long lastSweepTime = 0;
+    protected int lastSweepTreeSize = 0;
+    protected int pruneWindowChanges = 0;
+
+    protected PriorityQueue<ExpiryEntry> expiryIndex = new PriorityQueue<>();
+    protected List<ExpiryEntry> expiryOverdue = new ArrayList<>();
+
+    // entries of expiryIndex and expiryOverdue whose node was released or re-keyed
+    protected int expiryStale = 0;
+
+    // cursor of an amortized sweep: the split nodes on the current path and the branch being checked in each
+    protected boolean sweepInProgress = false;
+    protected boolean sweepRootVisited = false;
+    protected int sweepTimeStamp = 0;
+    protected List<SplitNode> sweepPath = new ArrayList<>();
+    protected int[] sweepBranch = new int[16];
+    // what the amortized sweep adds up for adaptPruneWindow over its slices
+    protected long sweepBegin = 0;
+    protected long sweepCost = 0;
+    protected boolean sweepPruned = false;
+    protected int sweepSizeBefore = 0;
+
+    protected LatencyHistogram trainLatency = new LatencyHistogram();
+
+    /**
+     * Starting the JVM with -Drapht.phaseTiming=false makes this constant
+     * false, and the JIT then drops the phase timers from the hot path.
+     */
+    protected static final boolean PHASE_TIMING =
+            Boolean.parseBoolean(System.getProperty("rapht.phaseTiming", "true"));
+
+    protected static final int PHASE_ROUTE = 0;
+    protected static final int PHASE_LEARN = 1;
+    protected static final int PHASE_SPLIT = 2;
+    protected static final int PHASE_PRUNE = 3;
+    protected static final int PHASE_NB_VOTES = 4;
+    protected static final String[] PHASE_NAMES = {"ROUTE", "LEARN", "SPLIT", "PRUNE", "NB-VOTES"};
+
+    protected LatencyHistogram[] phaseTimes = new LatencyHistogram[PHASE_NAMES.length];
+
+    // whether the instance being trained is one of the timed samples
+    protected boolean phaseSampled = false;
+
+    protected long predictionsSeen = 0;
+
+    protected int budgetEvictions = 0;
+
+    protected static final long SPLIT_WORKER_IDLE_SECONDS = 1;
+    protected transient ExecutorService splitWorker;
+    protected transient List<PendingSplit> pendingSplits = new ArrayList<>();
+
+    protected long asyncSplitsApplied = 0;
+    protected long asyncSplitsDiscarded = 0;
+    protected long asyncCarriedInstances = 0;
+    protected long asyncSplitDelay = 0;
+
+    // bumped on every change to the tree structure, so snapshots know when they are stale
+    protected int structureVersion = 0;
+
+    protected transient FlatTree snapshot;
+    protected transient int snapshotVersion;
+    protected transient long snapshotInstancesSeen;
+
+    // the tree version concurrent readers predict with, replaced but never modified by the trainer
+    protected transient AtomicReference<PublishedNode> publishedTree = new AtomicReference<>();
+
+    // concurrentTraining: shared for routing and leaf updates, exclusive for structural changes
+    protected transient volatile StampedLock structureLock;
+
+    // built from the header of the first instance stored in a slab
+    protected transient volatile NominalSlabLayout nominalSlabLayout;
+
+    // learning nodes and observers kept for reuse, null until nodePool puts one there
+    protected transient NodePool nodePool;
+
+    // histogram weights of offHeapStatistics, null until leafArena creates it
+    protected transient LeafArena leafArena;
+    protected final Object trainingWeightLock = new Object[0];
+
+    // atomic increments of instancesSeen from concurrent trainers
+    private static final VarHandle INSTANCES_SEEN;
+
+    // leaves of concurrent trainers grow under their own monitors only
+    private static final VarHandle TREE_BYTE_SIZE;
+
+    static {
+        try {
+            INSTANCES_SEEN = MethodHandles.lookup().findVarHandle(RAPHT.class, "instancesSeen", long.class);
+            TREE_BYTE_SIZE = MethodHandles.lookup().findVarHandle(RAPHT.class, "treeByteSize", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    // split attempts run on trainers and the split worker at once, each with its own scratch
+    private static final ThreadLocal<SplitRanking> SPLIT_RANKING = new ThreadLocal<SplitRanking>() {
+        @Override
+        protected SplitRanking initialValue() {
+            return new SplitRanking();
+        }
+    };
+
+    protected transient int publishedVersion;
+    protected transient long publishedInstancesSeen;
+
+    // reusable routing results, so routing an instance allocates nothing
+    protected transient FoundNode trainCursor;
+    protected transient FoundNode predictCursor;
+
+    // reusable buffers of trainOnInstances, grown to the largest segment seen
+    protected transient Node[] batchLeaf;
+    protected transient SplitNode[] batchParent;
+    protected transient int[] batchParentBranch;
+    protected transient long[] batchTimeStamp;
+    protected transient int[] batchNext;
+    protected transient int[] batchBucketHead;
+    protected transient int[] batchBucketTail;
+    protected transient IdentityHashMap<Node, Integer> batchBuckets;
+
     public int calcByteSize() {
+        if (this.analyticByteSize) {
+            int size = (int) ByteSizeEstimator.shallowSize(getClass());
+            if (this.treeRoot != null) {
+                size += this.treeRoot.estimateByteSizeIncludingSubtree();
+            }
+            return size;
+        }
         int size = (int) SizeOf.sizeOf(this);
         if (this.treeRoot != null) {
             size += this.treeRoot.calcByteSizeIncludingSubtree();
@@ -522,14 +4158,109 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
         return size;
     }
 
+    protected int nodeByteSize(Node node) {
+        return this.analyticByteSize ? node.estimateByteSize() : node.calcByteSize();
+    }
+
+    /**
+     * The model size from the per-node sizes kept in treeByteSize, the same
+     * total calcByteSize measures from scratch.
+     */
+    protected long byteSizeTotal() {
+        long self = this.analyticByteSize ? ByteSizeEstimator.shallowSize(getClass()) : SizeOf.sizeOf(this);
+        return self + this.treeByteSize;
+    }
+
     @Override
     public int measureByteSize() {
-        return calcByteSize();
+        return (int) Math.min(byteSizeTotal(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Measures node, which has to be in the tree, again and moves the
+     * difference into treeByteSize. Leaves call it after an update that may
+     * have grown them.
+     */
+    protected void refreshByteSize(Node node) {
+        node.byteSizeStale = false;
+        int byteSize = nodeByteSize(node);
+        int delta = byteSize - node.byteSize;
+        node.byteSize = byteSize;
+        if (delta != 0) {
+            TREE_BYTE_SIZE.getAndAdd(this, (long) delta);
+        }
+    }
+
+    /**
+     * Measures every node of a subtree that enters the tree and adds them to
+     * treeByteSize.
+     */
+    protected void subtreeAttached(Node node) {
+        TREE_BYTE_SIZE.getAndAdd(this, measureSubtree(node));
+    }
+
+    /**
+     * Takes a subtree that leaves the tree out of treeByteSize.
+     */
+    protected void subtreeDetached(Node node) {
+        TREE_BYTE_SIZE.getAndAdd(this, -countedSubtree(node));
+    }
+
+    /**
+     * Takes a node that leaves the tree out of treeByteSize, without its
+     * children, which stay in the tree or leave separately.
+     */
+    protected void nodeDetached(Node node) {
+        TREE_BYTE_SIZE.getAndAdd(this, (long) -node.byteSize);
+    }
+
+    private long measureSubtree(Node node) {
+        node.byteSizeStale = false;
+        node.byteSize = nodeByteSize(node);
+        long size = node.byteSize;
+        if (node instanceof SplitNode) {
+            for (Node child : ((SplitNode) node).children) {
+                if (child != null) {
+                    size += measureSubtree(child);
+                }
+            }
+        }
+        return size;
+    }
+
+    private long countedSubtree(Node node) {
+        long size = node.byteSize;
+        if (node instanceof SplitNode) {
+            for (Node child : ((SplitNode) node).children) {
+                if (child != null) {
+                    size += countedSubtree(child);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Whether the sizeofag agent is loaded, found without calling SizeOf,
+     * which prints a warning when it is not.
+     */
+    protected static boolean sizeOfAgentLoaded() {
+        try {
+            Field instrumentation = Class.forName("sizeof.agent.SizeOfAgent").getDeclaredField("inst");
+            instrumentation.setAccessible(true);
+            return instrumentation.get(null) != null;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return false;
+        }
     }
 
     @Override
     public void resetLearningImpl() {
         this.treeRoot = null;
+        this.treeByteSize = 0;
+        this.nominalSlabLayout = null;
+        this.nodePool = null;
+        this.leafArena = null;
         this.decisionNodeCount = 0;
         this.activeLeafNodeCount = 0;
         this.inactiveLeafNodeCount = 0;
@@ -537,82 +4268,765 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
         this.activeLeafByteSizeEstimate = 0.0;
         this.byteSizeEstimateOverheadFraction = 1.0;
         this.instancesSeen = 0;
+        this.accessEpoch = 0;
         this.learnPruned = 0;
         this.splitPruned = 0;
+        this.budgetEvictions = 0;
+        if (this.pendingSplits == null) {
+            this.pendingSplits = new ArrayList<>();
+        }
+        for (PendingSplit pending : this.pendingSplits) {
+            pending.decision.cancel(false);
+        }
+        this.pendingSplits.clear();
+        if (this.splitWorker != null) {
+            this.splitWorker.shutdown();
+            this.splitWorker = null;
+        }
+        if (this.publishedTree != null) {
+            this.publishedTree.set(null);
+        }
+        this.asyncSplitsApplied = 0;
+        this.asyncSplitsDiscarded = 0;
+        this.asyncCarriedInstances = 0;
+        this.asyncSplitDelay = 0;
+        this.sweepCount = 0;
+        this.sweepVisitedNodes = 0;
+        this.sweepHitRate = 0.5;
+        this.lastSweepTime = 0;
+        this.lastSweepTreeSize = 0;
+        this.pruneWindowChanges = 0;
         this.LRUPrunningActive = this.LRUPruneOption.isSet();
         if (this.LRUPrunningActive) {
             this.pruneInterval = this.PruneWindowOption.getValue();
             this.pruneThreshold = this.LRUThresholdOption.getValue();
         }
         this.subtreeRaisingActive = this.subtreeRaisingOption.isSet();
+        this.expiryIndexActive = this.LRUPrunningActive && this.expiryIndexOption.isSet();
+        this.expiryIndex.clear();
+        this.expiryOverdue.clear();
+        this.expiryStale = 0;
+        this.sweepInProgress = false;
+        this.sweepPath.clear();
+        this.trainLatency.reset();
+        for (int i = 0; i < this.phaseTimes.length; i++) {
+            this.phaseTimes[i] = new LatencyHistogram();
+        }
+        this.phaseSampled = false;
+        this.predictionsSeen = 0;
         this.growthAllowed = true;
+        this.analyticByteSize = !this.agentByteSizeOption.isSet() || !sizeOfAgentLoaded();
+        if (this.offHeapStatisticsOption.isSet()) {
+            if (this.concurrentTrainingOption.isSet()) {
+                throw new IllegalArgumentException("offHeapStatistics cannot be used with concurrentTraining");
+            }
+            if (getPreparedClassOption(this.numericEstimatorOption).getClass() != HistogramNumericObserver.class
+                    && getPreparedClassOption(this.nominalEstimatorOption).getClass() != NominalAttributeClassObserver.class) {
+                throw new IllegalArgumentException("offHeapStatistics moves nothing without NominalAttributeClassObserver"
+                        + " or HistogramNumericObserver");
+            }
+        }
+        if (this.splitEventLog != null) {
+            this.splitEventLog.close();
+            this.splitEventLog = null;
+        }
         if (this.outputBinSplitOption.isSet()) {
-            if (this.numericEstimatorOption.getValueAsCLIString().indexOf("-n") == -1)
-                this.numBins = 10;
-            else
-                this.numBins = Integer.parseInt(this.numericEstimatorOption.getValueAsCLIString().split("-n ")[1]);
+            // the token after -n, other options of the estimator may follow it
+            String[] estimatorTokens = this.numericEstimatorOption.getValueAsCLIString().split("\\s+");
+            this.numBins = 10;
+            for (int i = 0; i + 1 < estimatorTokens.length; i++) {
+                if (estimatorTokens[i].equals("-n")) {
+                    this.numBins = Integer.parseInt(estimatorTokens[i + 1]);
+                }
+            }
             this.numbinOutputFile = this.fileOutputBinSplitOption.getValue();
         }
-        if (this.leafpredictionOption.getChosenIndex()>0) { 
-            this.removePoorAttsOption = null;
+        if (this.leafpredictionOption.getChosenIndex()>0) { 
+            this.removePoorAttsOption = null;
+        }
+    }
+
+    public double getUsageFactor(int depth) {
+        return 1 + Math.log(Math.pow(2,depth/2.0));
+    }
+
+    public double get2AtDepth(int depth) {
+        return Math.pow(2,depth);
+    }
+    public double getWorstExpectedInterval(int depth) {
+        return Math.min(Math.ceil(get2AtDepth(depth) / (this.pruneThreshold/100.0)), ACCESS_IDLE_LIMIT);
+    }
+
+    /**
+     * The current instance count as an offset from the access epoch, the
+     * unit of every lastAccess and prune timestamp.
+     */
+    protected int accessTime() {
+        return (int) (this.instancesSeen - this.accessEpoch);
+    }
+
+    /**
+     * Moves the access epoch up to the current instance once offsets get
+     * large, shifting every node's lastAccess by the same amount. Nodes idle
+     * for more than 2^30 instances are clamped to that, the cap of
+     * getWorstExpectedInterval, so they stay stale at any depth while the
+     * offsets of prune checks stay within an int. Runs between training
+     * calls, once every 2^29 instances, so the 64-bit clock costs one int per
+     * node.
+     */
+    protected void rebaseAccessClock() {
+        rebaseAccessClock(this.instancesSeen);
+    }
+
+    protected void rebaseAccessClock(long now) {
+        long shift = now - this.accessEpoch;
+        if (shift < ACCESS_REBASE_LIMIT) {
+            return;
+        }
+        this.accessEpoch = now;
+        if (this.treeRoot != null) {
+            shiftAccessTimes(this.treeRoot, shift);
+        }
+        this.sweepTimeStamp = (int) Math.max(this.sweepTimeStamp - shift, -ACCESS_IDLE_LIMIT);
+        if (this.expiryIndexActive) {
+            // deadlines are offsets as well, so the index is rebuilt from the shifted nodes
+            this.expiryIndex.clear();
+            this.expiryOverdue.clear();
+            this.expiryStale = 0;
+            indexSubtree(this.treeRoot);
+        }
+    }
+
+    private void shiftAccessTimes(Node node, long shift) {
+        node.lastAccess = (int) Math.max(node.lastAccess - shift, -ACCESS_IDLE_LIMIT);
+        if (node instanceof SplitNode) {
+            for (Node child : ((SplitNode) node).children) {
+                if (child != null) {
+                    shiftAccessTimes(child, shift);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void trainOnInstance(Instance inst) {
+        if (this.concurrentTrainingOption.isSet()) {
+            if (inst.weight() > 0.0) {
+                synchronized (this.trainingWeightLock) {
+                    this.trainingWeightSeenByModel += inst.weight();
+                }
+                trainConcurrently(inst);
+            }
+        } else {
+            super.trainOnInstance(inst);
+        }
+    }
+
+    @Override
+    public void trainOnInstanceImpl(Instance inst) {
+        if (this.concurrentTrainingOption.isSet()) {
+            trainConcurrently(inst);
+            return;
+        }
+        long callBegin = this.trainLatencyOption.isSet() ? System.nanoTime() : 0;
+        this.instancesSeen++;
+        if (this.treeRoot == null) {
+            if (this.LRUPrunningActive) {
+                this.pruneThreshold = this.LRUThresholdOption.getValue();
+                this.pruneInterval = this.PruneWindowOption.getValue();
+            }
+            this.subtreeRaisingActive = this.subtreeRaisingOption.isSet();
+            setTreeRoot(newLearningNode());
+            subtreeAttached(this.treeRoot);
+            indexNode(this.treeRoot);
+            this.activeLeafNodeCount = 1;
+        }
+        rebaseAccessClock();
+        recycleReleasedNodes();
+        applyCompletedSplits();
+        int timingPeriod = this.phaseTimingOption.getValue();
+        this.phaseSampled = PHASE_TIMING && timingPeriod > 0 && this.instancesSeen % timingPeriod == 0;
+        trainRouted(inst);
+        long pruneBegin = this.phaseSampled ? System.nanoTime() : 0;
+        maintainTree();
+        if (this.phaseSampled) {
+            this.phaseTimes[PHASE_PRUNE].record(System.nanoTime() - pruneBegin);
+            this.phaseSampled = false;
+        }
+        publishTree();
+        if (this.trainLatencyOption.isSet()) {
+            this.trainLatency.record(System.nanoTime() - callBegin);
+        }
+    }
+
+    /**
+     * Training path of concurrentTraining, safe to call from many threads.
+     * Each instance takes its own tick of the instance clock. Routing and
+     * leaf updates run under the shared side of structureLock, holding the
+     * leaf's monitor while it learns, so instances reaching different leaves
+     * proceed in parallel. A split attempt is evaluated after releasing the
+     * monitor, with the leaf frozen as with asyncSplit: the instances other
+     * threads route to it meanwhile are carried, and trained from the root
+     * once the decision was applied under the exclusive side of
+     * structureLock (if the leaf is still in the tree). Creating a missing leaf, the
+     * prune checks (at the ticks that end a prune window, so an amortized
+     * sweep advances once per window), the byte budget (at the first tick
+     * that finds the tree over it) and publications for concurrentPrediction (every snapshotPeriod ticks, or
+     * every window when it is 0) are exclusive too. lastAccess stamps are
+     * written without ordering between threads, so a split node may keep a
+     * slightly older stamp than its latest visitor. asyncSplit and the phase
+     * timers are not used in this mode.
+     */
+    protected void trainConcurrently(Instance inst) {
+        long callBegin = this.trainLatencyOption.isSet() ? System.nanoTime() : 0;
+        long tick = (long) INSTANCES_SEEN.getAndAdd(this, 1L) + 1;
+        StampedLock lock = structureLock();
+        if (this.treeRoot == null) {
+            long stamp = lock.writeLock();
+            try {
+                if (this.treeRoot == null) {
+                    this.subtreeRaisingActive = this.subtreeRaisingOption.isSet();
+                    setTreeRoot(newLearningNode());
+                    subtreeAttached(this.treeRoot);
+                    indexNode(this.treeRoot);
+                    this.activeLeafNodeCount = 1;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        ActiveLearningNode splitLeaf = null;
+        SplitDecision decision = null;
+        boolean leafMissing = false;
+        long stamp = lock.readLock();
+        try {
+            FoundNode foundNode = filterInstanceToLeaf(inst, (int) (tick - this.accessEpoch),
+                    new FoundNode(null, null, -1));
+            Node leafNode = foundNode.node;
+            if (leafNode == null) {
+                leafMissing = true;
+            } else if (leafNode instanceof LearningNode) {
+                synchronized (leafNode) {
+                    if (leafNode instanceof ActiveLearningNode && ((ActiveLearningNode) leafNode).pendingSplit != null) {
+                        // another thread is evaluating a split of this leaf
+                        ((ActiveLearningNode) leafNode).pendingSplit.carried.add(inst);
+                    } else {
+                        ((LearningNode) leafNode).learnFromInstance(inst, this);
+                        leafNode.unpublish();
+                    }
+                    if (this.growthAllowed && leafNode instanceof ActiveLearningNode
+                            && ((ActiveLearningNode) leafNode).pendingSplit == null) {
+                        ActiveLearningNode activeLearningNode = (ActiveLearningNode) leafNode;
+                        double weightSeen = activeLearningNode.getWeightSeen();
+                        if (weightSeen - activeLearningNode.getWeightSeenAtLastSplitEvaluation()
+                                >= this.gracePeriodOption.getValue()) {
+                            // claims the attempt, other threads reaching this leaf wait for the next grace period
+                            activeLearningNode.setWeightSeenAtLastSplitEvaluation(weightSeen);
+                            if (!activeLearningNode.observedClassDistributionIsPure()) {
+                                splitLeaf = activeLearningNode;
+                                splitLeaf.pendingSplit = new PendingSplit(splitLeaf, null);
+                            }
+                        }
+                    }
+                }
+            }
+            if (splitLeaf != null) {
+                // the leaf is frozen, so its observers are read without holding its monitor
+                decision = evaluateSplit(splitLeaf,
+                        (SplitCriterion) getPreparedClassOption(this.splitCriterionOption));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        int window = this.PruneWindowOption.getValue();
+        int period = this.snapshotPeriodOption.getValue();
+        boolean maintenanceDue = tick % window == 0
+                || (this.LRUPrunningActive && tick % this.pruneInterval == 0)
+                || (period > 0 && tick % period == 0)
+                || overByteBudget();
+        if (leafMissing || splitLeaf != null || maintenanceDue) {
+            stamp = lock.writeLock();
+            try {
+                if (leafMissing) {
+                    // the tree may have changed since, route again
+                    learnRoutedExclusively(inst, tick);
+                }
+                if (splitLeaf != null) {
+                    PendingSplit pending = splitLeaf.pendingSplit;
+                    splitLeaf.pendingSplit = null;
+                    if (isAttached(splitLeaf)) {
+                        SplitNode parent = splitLeaf.getParent();
+                        applySplitDecision(splitLeaf, parent,
+                                parent == null ? -1 : parent.children.indexOf(splitLeaf), decision);
+                    } else {
+                        // pruned or evicted while it was evaluated
+                        releaseToPool(splitLeaf);
+                    }
+                    for (Instance carried : pending.carried) {
+                        learnRoutedExclusively(carried, tick);
+                    }
+                }
+                if (maintenanceDue) {
+                    rebaseAccessClock(tick);
+                    maintainTree(tick);
+                }
+                publishTree();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        if (this.trainLatencyOption.isSet()) {
+            synchronized (this.trainLatency) {
+                this.trainLatency.record(System.nanoTime() - callBegin);
+            }
         }
     }
 
-    public double getUsageFactor(int depth) {
-        return 1 + Math.log(Math.pow(2,depth/2.0));
+    /**
+     * Routes inst from the root and learns it at its leaf, creating the leaf
+     * when missing. Called by trainConcurrently holding structureLock
+     * exclusively.
+     */
+    protected void learnRoutedExclusively(Instance inst, long tick) {
+        FoundNode foundNode = filterInstanceToLeaf(inst, (int) (tick - this.accessEpoch),
+                new FoundNode(null, null, -1));
+        Node leafNode = foundNode.node;
+        if (leafNode == null) {
+            leafNode = newLeafAt(foundNode.parent, foundNode.parentBranch);
+        }
+        if (leafNode instanceof LearningNode) {
+            ((LearningNode) leafNode).learnFromInstance(inst, this);
+            leafNode.unpublish();
+        }
     }
 
-    public double get2AtDepth(int depth) {
-        return Math.pow(2,depth);
-    }
-    public double getWorstExpectedInterval(int depth) {
-        return Math.ceil(get2AtDepth(depth) / (this.pruneThreshold/100.0));
+    protected StampedLock structureLock() {
+        StampedLock lock = this.structureLock;
+        if (lock == null) {
+            synchronized (this.trainingWeightLock) {
+                if (this.structureLock == null) {
+                    this.structureLock = new StampedLock();
+                }
+                lock = this.structureLock;
+            }
+        }
+        return lock;
     }
 
-    @Override
-    public void trainOnInstanceImpl(Instance inst) {
-        this.instancesSeen++;
-        if (this.treeRoot == null) {
-            if (this.LRUPrunningActive) {
-                this.pruneThreshold = this.LRUThresholdOption.getValue();
-                this.pruneInterval = this.PruneWindowOption.getValue();
-            }
-            this.subtreeRaisingActive = this.subtreeRaisingOption.isSet();
-            this.treeRoot = newLearningNode();
-            this.activeLeafNodeCount = 1;
+    /**
+     * Routes inst from the root and learns it at its leaf, timestamped with
+     * the current accessTime().
+     */
+    protected void trainRouted(Instance inst) {
+        if (this.trainCursor == null) {
+            this.trainCursor = new FoundNode(null, null, -1);
+        }
+        long routeBegin = this.phaseSampled ? System.nanoTime() : 0;
+        FoundNode foundNode = filterInstanceToLeaf(inst, accessTime(), this.trainCursor);
+        if (this.phaseSampled) {
+            this.phaseTimes[PHASE_ROUTE].record(System.nanoTime() - routeBegin);
         }
-        FoundNode foundNode = this.treeRoot.filterInstanceToLeaf(inst, null, -1, this.instancesSeen);
         Node leafNode = foundNode.node;
         if (leafNode == null) {
-            leafNode = newLearningNode();
-            foundNode.parent.setChild(foundNode.parentBranch, leafNode);
-            this.activeLeafNodeCount++;
+            leafNode = newLeafAt(foundNode.parent, foundNode.parentBranch);
         }
-        if (leafNode instanceof LearningNode) {
+        learnAtLeaf(leafNode, foundNode.parent, foundNode.parentBranch, inst);
+    }
+
+    protected Node newLeafAt(SplitNode parent, int parentBranch) {
+        Node leafNode = newLearningNode();
+        parent.setChild(parentBranch, leafNode);
+        subtreeAttached(leafNode);
+        indexNode(leafNode);
+        this.structureVersion++;
+        this.activeLeafNodeCount++;
+        return leafNode;
+    }
+
+    protected void learnAtLeaf(Node leafNode, SplitNode parent, int parentBranch, Instance inst) {
+        if (leafNode instanceof ActiveLearningNode && ((ActiveLearningNode) leafNode).pendingSplit != null) {
+            leafNode.lastAccess = accessTime();
+            ((ActiveLearningNode) leafNode).pendingSplit.carried.add(inst);
+        } else if (leafNode instanceof LearningNode) {
             LearningNode learningNode = (LearningNode) leafNode;
+            long learnBegin = this.phaseSampled ? System.nanoTime() : 0;
             learningNode.learnFromInstance(inst, this);
+            learningNode.unpublish();
+            if (this.phaseSampled) {
+                this.phaseTimes[PHASE_LEARN].record(System.nanoTime() - learnBegin);
+            }
             if (this.growthAllowed
                     && (learningNode instanceof ActiveLearningNode)) {
                 ActiveLearningNode activeLearningNode = (ActiveLearningNode) learningNode;
                 double weightSeen = activeLearningNode.getWeightSeen();
                 if (weightSeen
                         - activeLearningNode.getWeightSeenAtLastSplitEvaluation() >= this.gracePeriodOption.getValue()) {
-                    attemptToSplit(activeLearningNode, foundNode.parent,
-                            foundNode.parentBranch);
+                    // split attempts are rare, so each one is timed
+                    boolean timeSplit = PHASE_TIMING && this.phaseTimingOption.getValue() > 0;
+                    long splitBegin = timeSplit ? System.nanoTime() : 0;
+                    if (this.asyncSplitOption.isSet()) {
+                        submitSplitAttempt(activeLearningNode);
+                    } else {
+                        attemptToSplit(activeLearningNode, parent, parentBranch);
+                    }
+                    if (timeSplit) {
+                        this.phaseTimes[PHASE_SPLIT].record(System.nanoTime() - splitBegin);
+                    }
                     activeLearningNode.setWeightSeenAtLastSplitEvaluation(weightSeen);
                 }
             }
+            if (overByteBudget()) {
+                // leaves grow between splits as well
+                enforceByteBudget();
+            }
+        }
+    }
+
+    /**
+     * Trains on a batch of instances. The batch is cut at every prune window
+     * boundary; within each segment all instances are routed first, then
+     * learned leaf by leaf in arrival order. Each instance keeps its own
+     * timestamp, so when no split happens inside a segment the tree is the
+     * same as after training on the instances one by one. When a leaf splits,
+     * the rest of its instances are routed again from the root.
+     */
+    public void trainOnInstances(Instance[] batch) {
+        if (this.concurrentTrainingOption.isSet()) {
+            for (Instance inst : batch) {
+                trainOnInstance(inst);
+            }
+            return;
+        }
+        int i = 0;
+        while (i < batch.length) {
+            if (this.treeRoot == null || this.sweepInProgress) {
+                // the amortized sweep runs between single instances
+                if (batch[i].weight() > 0.0) {
+                    this.trainingWeightSeenByModel += batch[i].weight();
+                    trainOnInstanceImpl(batch[i]);
+                }
+                i++;
+                continue;
+            }
+            int window = this.PruneWindowOption.getValue();
+            int segment = window - (int) (this.instancesSeen % window);
+            if (this.LRUPrunningActive) {
+                segment = Math.min(segment, this.pruneInterval - (int) (this.instancesSeen % this.pruneInterval));
+            }
+            segment = Math.min(segment, batch.length - i);
+            long callBegin = this.trainLatencyOption.isSet() ? System.nanoTime() : 0;
+            rebaseAccessClock();
+            recycleReleasedNodes();
+            applyCompletedSplits();
+            i = trainSegment(batch, i, segment);
+            maintainTree();
+            publishTree();
+            if (this.trainLatencyOption.isSet()) {
+                this.trainLatency.record(System.nanoTime() - callBegin);
+            }
+        }
+    }
+
+    /**
+     * Trains on up to length instances of batch starting at from, without
+     * crossing a prune window boundary, and returns the index after them.
+     */
+    protected int trainSegment(Instance[] batch, int from, int length) {
+        if (this.batchLeaf == null || this.batchLeaf.length < length) {
+            this.batchLeaf = new Node[length];
+            this.batchParent = new SplitNode[length];
+            this.batchParentBranch = new int[length];
+            this.batchTimeStamp = new long[length];
+            this.batchNext = new int[length];
+            this.batchBucketHead = new int[length];
+            this.batchBucketTail = new int[length];
+        }
+        if (this.batchBuckets == null) {
+            this.batchBuckets = new IdentityHashMap<>();
+        }
+        if (this.trainCursor == null) {
+            this.trainCursor = new FoundNode(null, null, -1);
+        }
+        int numBuckets = 0;
+        int to = from;
+        for (int k = 0; k < length; k++, to++) {
+            Instance inst = batch[to];
+            this.batchLeaf[k] = null;
+            if (inst.weight() <= 0.0) {
+                continue;
+            }
+            this.trainingWeightSeenByModel += inst.weight();
+            this.instancesSeen++;
+            this.batchTimeStamp[k] = this.instancesSeen;
+            FoundNode foundNode = filterInstanceToLeaf(inst, accessTime(), this.trainCursor);
+            Node leafNode = foundNode.node;
+            if (leafNode == null) {
+                leafNode = newLeafAt(foundNode.parent, foundNode.parentBranch);
+            }
+            this.batchLeaf[k] = leafNode;
+            this.batchParent[k] = foundNode.parent;
+            this.batchParentBranch[k] = foundNode.parentBranch;
+            this.batchNext[k] = -1;
+            Integer bucket = this.batchBuckets.get(leafNode);
+            if (bucket == null) {
+                this.batchBuckets.put(leafNode, numBuckets);
+                this.batchBucketHead[numBuckets] = k;
+                this.batchBucketTail[numBuckets] = k;
+                numBuckets++;
+            } else {
+                this.batchNext[this.batchBucketTail[bucket]] = k;
+                this.batchBucketTail[bucket] = k;
+            }
+        }
+        // instances without weight are not counted, so the segment may end before a boundary
+        long lastTimeStamp = this.instancesSeen;
+        for (int b = 0; b < numBuckets; b++) {
+            int k = this.batchBucketHead[b];
+            Node leafNode = this.batchLeaf[k];
+            SplitNode parent = this.batchParent[k];
+            int parentBranch = this.batchParentBranch[k];
+            boolean routed = isAttached(leafNode);
+            for (; k >= 0; k = this.batchNext[k]) {
+                this.instancesSeen = this.batchTimeStamp[k];
+                if (routed) {
+                    int evictions = this.budgetEvictions;
+                    learnAtLeaf(leafNode, parent, parentBranch, batch[from + k]);
+                    // an eviction may have moved or detached the parent as well
+                    routed = evictions == this.budgetEvictions && (parent == null ? this.treeRoot == leafNode
+                            : parent.getChild(parentBranch) == leafNode);
+                } else {
+                    trainRouted(batch[from + k]);
+                }
+            }
         }
+        this.batchBuckets.clear();
+        Arrays.fill(this.batchLeaf, 0, length, null);
+        Arrays.fill(this.batchParent, 0, length, null);
+        this.instancesSeen = lastTimeStamp;
+        return to;
+    }
+
+    /**
+     * Prune checks and the memory budget, run once after each trained
+     * instance or batch segment.
+     */
+    protected void maintainTree() {
+        maintainTree(this.instancesSeen);
+    }
 
-        if(this.LRUPrunningActive && this.instancesSeen % this.pruneInterval == 0) {
+    /**
+     * Runs the prune checks and the byte budget due at instance count tick.
+     */
+    protected void maintainTree(long tick) {
+        if(this.LRUPrunningActive && tick % this.pruneInterval == 0) {
+            long cpuBegin = TimingUtils.getNanoCPUTimeOfCurrentThread();
+            long begin = pruneWindowClock();
+            int prunedBefore = this.learnPruned + this.splitPruned;
+            int sizeBefore = this.decisionNodeCount + this.activeLeafNodeCount + this.inactiveLeafNodeCount;
+            int ts = (int) (tick - this.accessEpoch);
+            this.sweepCount++;
+            if (this.expiryIndexActive) {
+                this.pruneExpiredNodes(ts);
+            } else if (this.pruneBudgetOption.getValue() > 0) {
+                if (this.sweepInProgress) {
+                    // the previous window's check has to finish before a new one starts
+                    this.continueSweepSlice(Integer.MAX_VALUE);
+                }
+                this.startTreeUsageCheck(ts);
+                this.continueSweepSlice(this.pruneBudgetOption.getValue());
+            } else {
+                this.checkTreeUsage(this.treeRoot, ts);
+            }
+            this.evaluationTime += TimingUtils.getNanoCPUTimeOfCurrentThread() - cpuBegin;
+            if (this.adaptivePruneWindowOption.isSet() && this.pruneBudgetOption.getValue() <= 0) {
+                adaptPruneWindow(begin, pruneWindowClock() - begin,
+                        this.learnPruned + this.splitPruned > prunedBefore, sizeBefore);
+            }
+        } else if (this.sweepInProgress) {
             long begin = TimingUtils.getNanoCPUTimeOfCurrentThread();
-            this.checkTreeUsage(this.treeRoot, this.instancesSeen);
+            this.continueSweepSlice(this.pruneBudgetOption.getValue());
             this.evaluationTime += TimingUtils.getNanoCPUTimeOfCurrentThread() - begin;
         }
+        if (overByteBudget()) {
+            this.enforceByteBudget();
+        }
+    }
+
+    /**
+     * The clock adaptPruneWindow compares check costs on: CPU time of the
+     * training thread, or wall time under concurrentTraining, where
+     * consecutive checks run on different threads and each one holds the
+     * whole tree exclusively.
+     */
+    protected long pruneWindowClock() {
+        return this.concurrentTrainingOption.isSet() ? System.nanoTime()
+                : TimingUtils.getNanoCPUTimeOfCurrentThread();
+    }
+
+    /**
+     * Adjusts pruneInterval after a prune check that started at
+     * pruneWindowClock() begin and cost cost ns, with the tree at sizeBefore
+     * nodes when it started. Checks that rarely prune anything get spaced
+     * out when they cost more than WINDOW_COST_SHARE of the training time
+     * since the previous check, or the tree stopped growing in between; checks that keep
+     * pruning while the tree grows come closer together. The new window
+     * applies from its next multiple of the instance count.
+     */
+    protected void adaptPruneWindow(long begin, long cost, boolean pruned, int sizeBefore) {
+        this.sweepHitRate += WINDOW_HIT_SMOOTHING * ((pruned ? 1.0 : 0.0) - this.sweepHitRate);
+        int growth = sizeBefore - this.lastSweepTreeSize;
+        long elapsed = begin - this.lastSweepTime;
+        boolean first = this.lastSweepTime == 0;
+        this.lastSweepTime = begin;
+        this.lastSweepTreeSize = this.decisionNodeCount + this.activeLeafNodeCount + this.inactiveLeafNodeCount;
+        if (first) {
+            return;
+        }
+        int window = this.pruneInterval;
+        if (this.sweepHitRate < WINDOW_LOW_HIT_RATE
+                && (cost > WINDOW_COST_SHARE * elapsed || growth <= 0)) {
+            window = (int) Math.min(Math.ceil(window * WINDOW_GROWTH), Integer.MAX_VALUE);
+        } else if (this.sweepHitRate > WINDOW_HIGH_HIT_RATE && growth > 0) {
+            window = (int) Math.floor(window * WINDOW_SHRINK);
+        }
+        window = Math.max(this.minPruneWindowOption.getValue(),
+                Math.min(this.maxPruneWindowOption.getValue(), window));
+        if (window != this.pruneInterval) {
+            this.pruneInterval = window;
+            this.pruneWindowChanges++;
+        }
+    }
+
+    /**
+     * Runs one slice of an amortized sweep and adds its cost and prunes to
+     * the sweep, which adapts the prune window once its last slice is done.
+     */
+    private void continueSweepSlice(int budget) {
+        long begin = pruneWindowClock();
+        int prunedBefore = this.learnPruned + this.splitPruned;
+        this.continueTreeUsageCheck(budget);
+        this.sweepCost += pruneWindowClock() - begin;
+        this.sweepPruned |= this.learnPruned + this.splitPruned > prunedBefore;
+        if (!this.sweepInProgress && this.adaptivePruneWindowOption.isSet()) {
+            adaptPruneWindow(this.sweepBegin, this.sweepCost, this.sweepPruned, this.sweepSizeBefore);
+        }
+    }
+
+    private void startTreeUsageCheck(int ts) {
+        this.sweepBegin = pruneWindowClock();
+        this.sweepCost = 0;
+        this.sweepPruned = false;
+        this.sweepSizeBefore = this.decisionNodeCount + this.activeLeafNodeCount + this.inactiveLeafNodeCount;
+        this.sweepInProgress = true;
+        this.sweepRootVisited = false;
+        this.sweepTimeStamp = ts;
+        this.sweepPath.clear();
+    }
+
+    /**
+     * Runs the checkTreeUsage recursion for at most budget nodes, keeping the
+     * path in sweepPath so the next call resumes where this one stopped.
+     * Training only ever replaces leaves, so the split nodes on the path stay
+     * valid between calls. Nodes are tested against the time stamp of the
+     * window that started the check.
+     */
+    private void continueTreeUsageCheck(int budget) {
+        int ts = this.sweepTimeStamp;
+        while (this.sweepInProgress && budget > 0) {
+            int top = this.sweepPath.size() - 1;
+            Node n;
+            if (top < 0) {
+                if (this.sweepRootVisited) {
+                    this.sweepInProgress = false;
+                    return;
+                }
+                this.sweepRootVisited = true;
+                n = this.treeRoot;
+            } else {
+                SplitNode node = this.sweepPath.get(top);
+                int i = this.sweepBranch[top];
+                while (i < node.children.size() && node.getChild(i) == null) {
+                    i++;
+                }
+                if (i >= node.children.size()) {
+                    // all children checked, nothing to prune below this node
+                    this.sweepPath.remove(top);
+                    advanceSweepBranch();
+                    continue;
+                }
+                this.sweepBranch[top] = i;
+                n = node.getChild(i);
+            }
+            budget--;
+            this.sweepVisitedNodes++;
+            if (ts - n.lastAccess >= this.getWorstExpectedInterval(n.depth)) {
+                if (top < 0) {
+                    // the root itself is stale, the recursive check ignores it as well
+                    this.sweepInProgress = false;
+                } else if (this.sweepPath.get(top) == this.treeRoot) {
+                    pruneRootChild(n);
+                    this.sweepInProgress = false;
+                } else if (top == 0) {
+                    // the path does not start at the root anymore
+                    this.sweepInProgress = false;
+                } else {
+                    // prune from the grandparent, which then returns to its own parent
+                    pruneChildSplit(this.sweepPath.get(top - 1), this.sweepBranch[top - 1], ts);
+                    this.sweepPath.remove(top);
+                    this.sweepPath.remove(top - 1);
+                    if (top - 1 == 0) {
+                        this.sweepInProgress = false;
+                    } else {
+                        advanceSweepBranch();
+                    }
+                }
+            } else if (n instanceof SplitNode) {
+                if (this.sweepBranch.length == this.sweepPath.size()) {
+                    this.sweepBranch = Arrays.copyOf(this.sweepBranch, 2 * this.sweepBranch.length);
+                }
+                this.sweepBranch[this.sweepPath.size()] = 0;
+                this.sweepPath.add((SplitNode) n);
+            } else if (top >= 0) {
+                this.sweepBranch[top]++;
+            }
+        }
+    }
+
+    /**
+     * Cuts the path of an amortized check back to its part that is still in
+     * the tree, after evictions that do not wait for the check; it then goes
+     * on with the branch that changed. When the root changed, the check
+     * starts over from the new root with the same time stamp.
+     */
+    private void repairSweepPath() {
+        if (!this.sweepInProgress || this.sweepPath.isEmpty()) {
+            return;
+        }
+        if (this.sweepPath.get(0) != this.treeRoot) {
+            this.sweepPath.clear();
+            this.sweepRootVisited = false;
+            return;
+        }
+        int valid = 1;
+        while (valid < this.sweepPath.size()
+                && this.sweepPath.get(valid - 1).getChild(this.sweepBranch[valid - 1]) == this.sweepPath.get(valid)) {
+            valid++;
+        }
+        while (this.sweepPath.size() > valid) {
+            this.sweepPath.remove(this.sweepPath.size() - 1);
+        }
+    }
+
+    private void advanceSweepBranch() {
+        int top = this.sweepPath.size() - 1;
+        if (top >= 0) {
+            this.sweepBranch[top]++;
+        }
     }
 
     private int checkTreeUsage(Node node, int ts) {
-        int depth = getNodeDepth(node);
+        this.sweepVisitedNodes++;
+        int depth = node.depth;
         int interval = ts - node.lastAccess;
         double wThresh = this.getWorstExpectedInterval(depth);
         if (interval >= wThresh) {
@@ -628,49 +5042,12 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
                     //we still need to move up the tree
                     return 0;
                 } else if (shouldPrune == 0) {
-                    if (this.subtreeRaisingActive) {
-                        // We are in the grandparent and using subtree raising.
-                        // wThresh = Math.ceil(this.pruneThreshold * this.getUsageFactor(depth+1));
-                        wThresh = this.getWorstExpectedInterval(depth);
-                        boolean majorityTest = (ts - ((SplitNode) n).getChild(0).lastAccess) < wThresh;
-                        int idMinor = majorityTest ? 1 : 0;
-                        Node maj = ((SplitNode) n).children.get(1 - idMinor);
-                        // Promote majority to the parent's place
-                        ((SplitNode) node).setChild(i,maj);
-                        // Finally, update counters
-                        this.updateCounterForNodeRemoval(((SplitNode) n).children.get(idMinor));
-                    } else {
-                        // we are in the grandparent without subtree raising
-                        // checking class just for sanity, there should not be a case where something other than split node has a child
-                        if (n instanceof SplitNode)
-                            ((SplitNode) node).setChild(i, createLearningAndUpdateCounters(n));
-                    }
-                    int ttnodes = this.inactiveLeafNodeCount + this.decisionNodeCount + this.activeLeafNodeCount;
-                    if (ttnodes > this.maxNodeSize)
-                        this.maxNodeSize = ttnodes;
-                    this.averageCount++;
-                    this.averageNodeSize = this.averageNodeSize + (ttnodes - averageNodeSize)/this.averageCount;
+                    // we are in the grandparent
+                    pruneChildSplit((SplitNode) node, i, ts);
                     return -1;
                 } else if (shouldPrune == 1 && node == this.treeRoot) {
                     //we are at the root, but one of its children needs pruning
-                    if (this.subtreeRaisingActive) {
-                        // We are in the parent (which is the root) and using subtree raising.
-                        // We already know the rarely accessed node (n)
-                        int indexMinor = ((SplitNode) node).children.indexOf(n);
-                        Node minor = ((SplitNode) node).getChild(indexMinor);
-                        Node maj = ((SplitNode) node).getChild(1-indexMinor);
-                        // Update root
-                        this.treeRoot = maj;
-                        this.updateCounterForNodeRemoval(minor);
-                    } else {
-                        // forget everything pruning
-                        this.treeRoot = createLearningAndUpdateCounters(this.treeRoot);
-                    }
-                    int ttnodes = this.inactiveLeafNodeCount + this.decisionNodeCount + this.activeLeafNodeCount;
-                    if (ttnodes > this.maxNodeSize)
-                        this.maxNodeSize = ttnodes;
-                    this.averageCount++;
-                    this.averageNodeSize = this.averageNodeSize + (ttnodes - averageNodeSize)/this.averageCount;
+                    pruneRootChild(n);
                     return -1;
                 } // no else needed as shouldPrune == -1 is the standard (no pruning needed)
             }
@@ -678,8 +5055,366 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
         return shouldPrune;
     }
 
-    protected void updateCounterForNodeRemoval(Node minor) {
-        int split = this.subtreeRaisingActive? (this.countSplitInChildren(minor) + 1) : this.countSplitInChildren(minor);
+    /**
+     * Index-driven counterpart of checkTreeUsage. Entries are keyed lazily: a
+     * node touched since it was keyed is simply re-keyed when its old deadline
+     * comes up, so a check only visits nodes whose deadline has passed. Nodes
+     * that become overdue while pruning are left for the next check, as the
+     * sweep would. An entry taken out of the heap loses its node, like the
+     * entries of released nodes, so only queued entries count as stale.
+     */
+    private void pruneExpiredNodes(int ts) {
+        this.expiryIndex.addAll(this.expiryOverdue);
+        this.expiryOverdue.clear();
+        ExpiryEntry entry;
+        while ((entry = this.expiryIndex.peek()) != null && entry.deadline <= ts) {
+            this.expiryIndex.poll();
+            Node node = entry.node;
+            if (node == null) {
+                this.expiryStale--;
+                continue; // node was pruned or re-keyed since
+            }
+            entry.node = null;
+            this.sweepVisitedNodes++;
+            if (ts - node.lastAccess < this.getWorstExpectedInterval(node.depth)) {
+                indexNode(node);
+                continue;
+            }
+            // the sweep stops at the topmost expired node of a path
+            Node expired = node;
+            for (Node n = node.parent; n != null; n = n.parent) {
+                if (ts - n.lastAccess >= this.getWorstExpectedInterval(n.depth))
+                    expired = n;
+            }
+            if (expired != this.treeRoot) {
+                SplitNode parent = expired.parent;
+                if (parent == this.treeRoot) {
+                    pruneRootChild(expired);
+                } else {
+                    pruneChildSplit(parent.parent, parent.parent.children.indexOf(parent), ts);
+                }
+            }
+            if (node.expiryEntry == entry) {
+                indexNode(node);
+            }
+        }
+    }
+
+    protected void indexNode(Node node) {
+        if (this.expiryIndexActive) {
+            detachExpiryEntry(node);
+            node.expiryEntry = new ExpiryEntry(node,
+                    node.lastAccess + this.getWorstExpectedInterval(node.depth));
+            if (node.expiryEntry.deadline > accessTime())
+                this.expiryIndex.offer(node.expiryEntry);
+            else
+                this.expiryOverdue.add(node.expiryEntry);
+        }
+    }
+
+    protected void indexSubtree(Node node) {
+        if (this.expiryIndexActive && node != null) {
+            indexNode(node);
+            if (node instanceof SplitNode) {
+                for (Node child : ((SplitNode) node).children) {
+                    indexSubtree(child);
+                }
+            }
+        }
+    }
+
+    protected void releaseNode(Node node) {
+        if (node != null && node.expiryEntry != null) {
+            detachExpiryEntry(node);
+            node.expiryEntry = null;
+        }
+    }
+
+    /**
+     * Marks the queued entry of node stale. Stale entries stay in the heap
+     * until their deadline or until they outnumber the live ones, when the
+     * index is rebuilt without them, so its size follows the tree size.
+     */
+    private void detachExpiryEntry(Node node) {
+        ExpiryEntry entry = node.expiryEntry;
+        if (entry != null && entry.node != null) {
+            entry.node = null;
+            this.expiryStale++;
+            if (2 * this.expiryStale > this.expiryIndex.size() + this.expiryOverdue.size()) {
+                compactExpiryIndex();
+            }
+        }
+    }
+
+    private void compactExpiryIndex() {
+        List<ExpiryEntry> live = new ArrayList<>(this.expiryIndex.size());
+        for (ExpiryEntry entry : this.expiryIndex) {
+            if (entry.node != null) {
+                live.add(entry);
+            }
+        }
+        this.expiryIndex = new PriorityQueue<>(live);
+        Iterator<ExpiryEntry> it = this.expiryOverdue.iterator();
+        while (it.hasNext()) {
+            if (it.next().node == null) {
+                it.remove();
+            }
+        }
+        this.expiryStale = 0;
+    }
+
+    protected void releaseSubtree(Node node) {
+        if (this.expiryIndexActive && node != null) {
+            releaseNode(node);
+            if (node instanceof SplitNode) {
+                for (Node child : ((SplitNode) node).children) {
+                    releaseSubtree(child);
+                }
+            }
+        }
+    }
+
+    protected void pruneChildSplit(SplitNode grandParent, int branch, int ts) {
+        Node n = grandParent.getChild(branch);
+        TreeEvents.StructureEvent event = newPruneEvent();
+        Node maj = null;
+        if (this.subtreeRaisingActive && n instanceof SplitNode) {
+            // wThresh = Math.ceil(this.pruneThreshold * this.getUsageFactor(depth+1));
+            double wThresh = this.getWorstExpectedInterval(grandParent.depth);
+            // the first child accessed within the threshold is the majority, the last one when none was
+            for (Node child : ((SplitNode) n).children) {
+                if (child != null) {
+                    maj = child;
+                    if (ts - child.lastAccess < wThresh) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (maj != null) {
+            // We are in the grandparent and using subtree raising.
+            nodeDetached(n);
+            // Promote majority to the parent's place
+            grandParent.setChild(branch, maj);
+            releaseSubtree(n);
+            indexSubtree(maj);
+            // Finally, update counters
+            removeMinorChildren((SplitNode) n, maj);
+        } else {
+            // we are in the grandparent without subtree raising
+            // checking class just for sanity, there should not be a case where something other than split node has a child
+            if (n instanceof SplitNode) {
+                subtreeDetached(n);
+                grandParent.setChild(branch, createLearningAndUpdateCounters(n));
+                subtreeAttached(grandParent.getChild(branch));
+                indexNode(grandParent.getChild(branch));
+            }
+        }
+        recordTreeSize();
+        commitPruneEvent(event, grandParent.depth + 1);
+    }
+
+    protected void pruneRootChild(Node n) {
+        TreeEvents.StructureEvent event = newPruneEvent();
+        Node maj = null;
+        if (this.subtreeRaisingActive) {
+            // We already know the rarely accessed node (n), the most recently accessed of the others is raised
+            for (Node child : ((SplitNode) this.treeRoot).children) {
+                if (child != null && child != n && (maj == null || child.lastAccess > maj.lastAccess)) {
+                    maj = child;
+                }
+            }
+        }
+        if (maj != null) {
+            // We are in the parent (which is the root) and using subtree raising.
+            SplitNode root = (SplitNode) this.treeRoot;
+            nodeDetached(root);
+            // Update root
+            releaseSubtree(root);
+            setTreeRoot(maj);
+            indexSubtree(maj);
+            removeMinorChildren(root, maj);
+        } else {
+            // forget everything pruning
+            subtreeDetached(this.treeRoot);
+            setTreeRoot(createLearningAndUpdateCounters(this.treeRoot));
+            subtreeAttached(this.treeRoot);
+            indexNode(this.treeRoot);
+        }
+        recordTreeSize();
+        commitPruneEvent(event, 0);
+    }
+
+    /**
+     * Starts the flight recorder event for a prune: a subtree raise when
+     * subtree raising is active, a plain prune otherwise.
+     */
+    protected TreeEvents.StructureEvent newPruneEvent() {
+        return this.subtreeRaisingActive ? new TreeEvents.SubtreeRaise() : new TreeEvents.Prune();
+    }
+
+    protected void commitPruneEvent(TreeEvents.StructureEvent event, int depth) {
+        if (event.shouldCommit()) {
+            fillEvent(event, depth);
+            event.commit();
+        }
+    }
+
+    protected void fillEvent(TreeEvents.StructureEvent event, int depth) {
+        event.fill(getClass().getSimpleName(), depth, this.decisionNodeCount,
+                this.activeLeafNodeCount, this.inactiveLeafNodeCount, this.instancesSeen);
+    }
+
+    /**
+     * Whether the running model size exceeds maxByteSize, cheap enough to
+     * ask after every leaf update.
+     */
+    protected boolean overByteBudget() {
+        int budget = this.maxByteSizeOption.getValue();
+        return budget > 0 && this.treeRoot != null && byteSizeTotal() > budget;
+    }
+
+    /**
+     * Evicts split nodes until the model fits in maxByteSize. Candidates are
+     * taken least recently accessed first and, among equally stale ones,
+     * largest subtree first; each is pruned the way checkTreeUsage would prune
+     * it, so subtree raising applies when enabled. Sizes come from the
+     * running per-node estimates, nothing is measured again.
+     */
+    protected void enforceByteBudget() {
+        long budget = this.maxByteSizeOption.getValue();
+        if (budget <= 0 || this.treeRoot == null) {
+            return;
+        }
+        long size = byteSizeTotal();
+        while (size > budget) {
+            List<BudgetCandidate> candidates = new ArrayList<>();
+            collectBudgetCandidates(this.treeRoot, candidates);
+            if (candidates.isEmpty()) {
+                break; // a single leaf, nothing left to evict
+            }
+            Collections.sort(candidates);
+            long excess = size - budget;
+            for (BudgetCandidate candidate : candidates) {
+                if (excess <= 0) {
+                    break;
+                }
+                if (isAttached(candidate.node)) {
+                    evictSubtree(candidate.node);
+                    excess -= candidate.byteSize;
+                }
+            }
+            // evictions may have detached part of the path an amortized check is walking
+            repairSweepPath();
+            long newSize = byteSizeTotal();
+            if (newSize >= size) {
+                break;
+            }
+            size = newSize;
+        }
+    }
+
+    protected static class BudgetCandidate implements Comparable<BudgetCandidate> {
+
+        protected final SplitNode node;
+
+        protected final long byteSize;
+
+        public BudgetCandidate(SplitNode node, long byteSize) {
+            this.node = node;
+            this.byteSize = byteSize;
+        }
+
+        @Override
+        public int compareTo(BudgetCandidate other) {
+            if (this.node.lastAccess != other.node.lastAccess) {
+                return Integer.compare(this.node.lastAccess, other.node.lastAccess);
+            }
+            return Long.compare(other.byteSize, this.byteSize);
+        }
+    }
+
+    private long collectBudgetCandidates(Node node, List<BudgetCandidate> candidates) {
+        long byteSize = node.byteSize;
+        if (node instanceof SplitNode) {
+            for (Node child : ((SplitNode) node).children) {
+                if (child != null) {
+                    byteSize += collectBudgetCandidates(child, candidates);
+                }
+            }
+            candidates.add(new BudgetCandidate((SplitNode) node, byteSize));
+        }
+        return byteSize;
+    }
+
+    private void evictSubtree(SplitNode node) {
+        if (node == this.treeRoot) {
+            // the root goes through the same path as a stale child of the root
+            Node stalest = null;
+            for (Node child : node.children) {
+                if (child != null && (stalest == null || child.lastAccess < stalest.lastAccess)) {
+                    stalest = child;
+                }
+            }
+            pruneRootChild(stalest);
+        } else {
+            SplitNode grandParent = node.parent;
+            pruneChildSplit(grandParent, grandParent.children.indexOf(node), accessTime());
+        }
+        this.budgetEvictions++;
+    }
+
+    protected boolean isAttached(Node node) {
+        while (node.parent != null) {
+            if (node.parent.children.indexOf(node) < 0) {
+                return false;
+            }
+            node = node.parent;
+        }
+        return node == this.treeRoot;
+    }
+
+    protected void recordTreeSize() {
+        this.structureVersion++;
+        int ttnodes = this.inactiveLeafNodeCount + this.decisionNodeCount + this.activeLeafNodeCount;
+        if (ttnodes > this.maxNodeSize)
+            this.maxNodeSize = ttnodes;
+        this.averageCount++;
+        this.averageNodeSize = this.averageNodeSize + (ttnodes - averageNodeSize)/this.averageCount;
+    }
+
+    protected void setTreeRoot(Node root) {
+        root.parent = null;
+        root.setDepth(0);
+        this.treeRoot = root;
+        this.structureVersion++;
+    }
+
+    /**
+     * Drops every child of a raised split node other than maj, counting
+     * the split node itself as pruned once.
+     */
+    protected void removeMinorChildren(SplitNode raised, Node maj) {
+        boolean first = true;
+        for (Node minor : raised.children) {
+            if (minor != null && minor != maj) {
+                subtreeDetached(minor);
+                updateCounterForNodeRemoval(minor, first);
+                releaseToPool(minor);
+                first = false;
+            }
+        }
+        if (first) {
+            updateCounterForNodeRemoval(null, true);
+        }
+    }
+
+    /**
+     * Counts the subtree of minor as pruned, plus the split node above it
+     * when withParent, as subtree raising removes that one too.
+     */
+    protected void updateCounterForNodeRemoval(Node minor, boolean withParent) {
+        int split = withParent ? (this.countSplitInChildren(minor) + 1) : this.countSplitInChildren(minor);
         int learn = this.countLearnInChildren(minor);
         this.splitPruned += split;
         this.learnPruned += learn;
@@ -689,8 +5424,10 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
     protected Node createLearningAndUpdateCounters(Node n) {
         Node newChild = newLearningNode();
-        newChild.lastAccess = this.instancesSeen;
-        this.updateCounterForNodeRemoval(n);
+        newChild.lastAccess = accessTime();
+        releaseSubtree(n);
+        this.updateCounterForNodeRemoval(n, false);
+        releaseToPool(n);
         this.activeLeafNodeCount++;
         return newChild;
     }
@@ -715,18 +5452,193 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
                 ret += countLearnInChildren(n2);
             }
         }
-        return ret;
+        return ret;
+    }
+
+    /**
+     * Iterative equivalent of treeRoot.filterInstanceToLeaf that fills the
+     * given cursor instead of allocating a FoundNode. A non-negative
+     * timeStamp is stamped on every split node passed, as the TimeStamp
+     * overload does.
+     */
+    protected FoundNode filterInstanceToLeaf(Instance inst, int timeStamp, FoundNode found) {
+        Node node = this.treeRoot;
+        SplitNode parent = null;
+        int parentBranch = -1;
+        while (node instanceof SplitNode) {
+            SplitNode splitNode = (SplitNode) node;
+            int childIndex = splitNode.instanceChildIndex(inst);
+            if (timeStamp > splitNode.lastAccess) {
+                splitNode.lastAccess = timeStamp;
+            }
+            if (childIndex < 0) {
+                break;
+            }
+            parent = splitNode;
+            parentBranch = childIndex;
+            node = splitNode.getChild(childIndex);
+        }
+        found.node = node;
+        found.parent = parent;
+        found.parentBranch = parentBranch;
+        return found;
+    }
+
+    /**
+     * Compiles the current tree into an immutable FlatTree.
+     */
+    public FlatTree compileSnapshot() {
+        if (this.treeRoot == null) {
+            return null;
+        }
+        return new FlatTree(this.treeRoot, this.decisionNodeCount
+                + this.activeLeafNodeCount + this.inactiveLeafNodeCount);
+    }
+
+    /**
+     * The last compiled snapshot, recompiled when the tree structure changed
+     * or snapshotPeriod instances were trained since.
+     */
+    public FlatTree getSnapshot() {
+        int period = this.snapshotPeriodOption.getValue();
+        if (this.snapshot == null || this.snapshotVersion != this.structureVersion
+                || (period > 0 && this.instancesSeen - this.snapshotInstancesSeen >= period)) {
+            this.snapshot = compileSnapshot();
+            this.snapshotVersion = this.structureVersion;
+            this.snapshotInstancesSeen = this.instancesSeen;
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * Publishes the current tree for concurrent readers when its structure
+     * changed, or its leaves were trained for snapshotPeriod instances, since
+     * the last publication. Only the nodes on paths to changed nodes are
+     * copied; unchanged subtrees are shared with the previous version.
+     */
+    protected void publishTree() {
+        if (!this.concurrentPredictionOption.isSet() || this.treeRoot == null) {
+            return;
+        }
+        if (this.publishedTree == null) {
+            this.publishedTree = new AtomicReference<>();
+        }
+        int period = this.snapshotPeriodOption.getValue();
+        if (this.publishedTree.get() != null && this.publishedVersion == this.structureVersion
+                && period > 0 && this.instancesSeen - this.publishedInstancesSeen < period) {
+            return;
+        }
+        this.publishedTree.set(publish(this.treeRoot));
+        this.publishedVersion = this.structureVersion;
+        this.publishedInstancesSeen = this.instancesSeen;
+    }
+
+    protected PublishedNode publish(Node node) {
+        if (node.published != null) {
+            return node.published;
+        }
+        PublishedNode published;
+        if (node instanceof SplitNode) {
+            SplitNode split = (SplitNode) node;
+            PublishedNode[] children = new PublishedNode[split.numChildren()];
+            for (int i = 0; i < children.length; i++) {
+                Node child = split.getChild(i);
+                children[i] = child != null ? publish(child) : null;
+            }
+            published = new PublishedNode(split.splitTest, children,
+                    split.observedClassDistribution.getArrayCopy(), null);
+        } else if (node instanceof LearningNodeNB) {
+            LearningNodeNB leaf = (LearningNodeNB) node;
+            // freezing copies every observer, so with period 0 a leaf keeps its copy for a grace period
+            if (leaf.frozen == null || this.snapshotPeriodOption.getValue() > 0
+                    || leaf.getWeightSeen() - leaf.frozenWeightSeen >= this.gracePeriodOption.getValue()) {
+                leaf.frozen = new PublishedNode(null, null, null, freezeNBLeaf(leaf));
+                leaf.frozenWeightSeen = leaf.getWeightSeen();
+            }
+            published = leaf.frozen;
+        } else {
+            published = new PublishedNode(null, null, node.observedClassDistribution.getArrayCopy(), null);
+        }
+        node.published = published;
+        return published;
+    }
+
+    /**
+     * Copy of a Naive Bayes leaf with its own observers, which only the
+     * readers of a published tree use.
+     */
+    protected LearningNodeNB freezeNBLeaf(LearningNodeNB leaf) {
+        leaf.settleSparse();
+        LearningNodeNB frozen;
+        if (leaf instanceof LearningNodeNBAdaptive) {
+            LearningNodeNBAdaptive adaptive = new LearningNodeNBAdaptive(leaf.getObservedClassDistribution());
+            adaptive.mcCorrectWeight = ((LearningNodeNBAdaptive) leaf).mcCorrectWeight;
+            adaptive.nbCorrectWeight = ((LearningNodeNBAdaptive) leaf).nbCorrectWeight;
+            frozen = adaptive;
+        } else {
+            frozen = new LearningNodeNB(leaf.getObservedClassDistribution());
+        }
+        frozen.attributeObservers = new AutoExpandVector<>(leaf.attributeObservers.size());
+        if (leaf.nominalSlab != null) {
+            frozen.nominalSlab = new NominalSlab(leaf.nominalSlab);
+        }
+        for (int i = 0; i < leaf.attributeObservers.size(); i++) {
+            AttributeClassObserver obs = leaf.attributeObservers.get(i);
+            if (obs instanceof NominalSlabObserver) {
+                frozen.attributeObservers.add(new NominalSlabObserver(frozen.nominalSlab, i));
+            } else {
+                frozen.attributeObservers.add(obs != null ? Checkpoint.copyObserver(obs) : null);
+            }
+        }
+        if (leaf.sparseClassWeights != null) {
+            // scores the attributes without observer
+            frozen.sparseClassWeights = new DoubleVector(leaf.sparseClassWeights);
+        }
+        NaiveBayesTable table = leaf.naiveBayesTable;
+        if (table != null && table.matches(leaf)) {
+            frozen.naiveBayesTable = new NaiveBayesTable(table, frozen);
+        }
+        return frozen;
+    }
+
+    /**
+     * The last tree published for concurrent readers, null before the first
+     * training call or when concurrentPrediction is off.
+     */
+    public PublishedNode getPublishedTree() {
+        return this.publishedTree != null ? this.publishedTree.get() : null;
     }
 
     @Override
     public double[] getVotesForInstance(Instance inst) {
+        if (this.concurrentPredictionOption.isSet()) {
+            // reads only the published tree, never the one being trained
+            PublishedNode root = getPublishedTree();
+            if (root == null) {
+                return new double[inst.dataset().numClasses()];
+            }
+            return root.getVotesForInstance(inst, this);
+        }
+        if (this.treeRoot != null && this.snapshotPeriodOption.getValue() > 0) {
+            return getSnapshot().getVotesForInstance(inst, this);
+        }
         if (this.treeRoot != null) {
-            FoundNode foundNode = this.treeRoot.filterInstanceToLeaf(inst,
-                    null, -1);
+            if (this.predictCursor == null) {
+                this.predictCursor = new FoundNode(null, null, -1);
+            }
+            FoundNode foundNode = filterInstanceToLeaf(inst, -1, this.predictCursor);
             Node leafNode = foundNode.node;
             if (leafNode == null) {
                 leafNode = foundNode.parent;
             }
+            int timingPeriod = this.phaseTimingOption.getValue();
+            if (PHASE_TIMING && timingPeriod > 0 && leafNode instanceof LearningNodeNB
+                    && ++this.predictionsSeen % timingPeriod == 0) {
+                long votesBegin = System.nanoTime();
+                double[] votes = leafNode.getClassVotes(inst, this);
+                this.phaseTimes[PHASE_NB_VOTES].record(System.nanoTime() - votesBegin);
+                return votes;
+            }
             return leafNode.getClassVotes(inst, this);
           } else {
             int numClasses = inst.dataset().numClasses();
@@ -736,7 +5648,7 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
     @Override
     protected Measurement[] getModelMeasurementsImpl() {
-        return new Measurement[]{
+        Measurement[] measurements = new Measurement[]{
                     new Measurement("evaluationTime",
                     TimingUtils.nanoTimeToSeconds(this.evaluationTime)),
                     new Measurement("tree size (nodes)", this.decisionNodeCount
@@ -765,7 +5677,58 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
                     new Measurement("AVG-NODESIZE",
                     this.averageNodeSize),
                     new Measurement("MAX-NODESIZE",
-                    this.maxNodeSize)};
+                    this.maxNodeSize),
+                    new Measurement("BUDGET-EVICTIONS",
+                    this.budgetEvictions),
+                    new Measurement("ASYNC-SPLITS-APPLIED",
+                    this.asyncSplitsApplied),
+                    new Measurement("ASYNC-SPLITS-DISCARDED",
+                    this.asyncSplitsDiscarded),
+                    new Measurement("ASYNC-SPLIT-STALENESS (instances)",
+                    this.asyncSplitsApplied > 0 ? (double) this.asyncCarriedInstances / this.asyncSplitsApplied : 0.0),
+                    new Measurement("ASYNC-SPLIT-DELAY (ms)",
+                    this.asyncSplitsApplied > 0 ? this.asyncSplitDelay / 1e6 / this.asyncSplitsApplied : 0.0),
+                    new Measurement("AVG-SWEEP-NODES",
+                    this.sweepCount > 0 ? (double) this.sweepVisitedNodes / this.sweepCount : 0.0),
+                    new Measurement("SWEEP-HIT-RATE",
+                    this.sweepHitRate),
+                    new Measurement("PRUNE-WINDOW-CHANGES",
+                    this.pruneWindowChanges),
+                    new Measurement("TRAIN-LATENCY-P50 (ns)",
+                    this.trainLatency.percentile(0.5)),
+                    new Measurement("TRAIN-LATENCY-P99 (ns)",
+                    this.trainLatency.percentile(0.99)),
+                    new Measurement("TRAIN-LATENCY-P999 (ns)",
+                    this.trainLatency.percentile(0.999)),
+                    new Measurement("TRAIN-LATENCY-MAX (ns)",
+                    this.trainLatency.getMax())};
+        if (PHASE_TIMING && this.phaseTimingOption.getValue() > 0) {
+            List<Measurement> withPhases = new ArrayList<>(Arrays.asList(measurements));
+            for (int i = 0; i < PHASE_NAMES.length; i++) {
+                LatencyHistogram phase = this.phaseTimes[i];
+                withPhases.add(new Measurement("PHASE-" + PHASE_NAMES[i] + "-SAMPLES", phase.getCount()));
+                withPhases.add(new Measurement("PHASE-" + PHASE_NAMES[i] + "-MEAN (ns)", phase.getMean()));
+                withPhases.add(new Measurement("PHASE-" + PHASE_NAMES[i] + "-P50 (ns)", phase.percentile(0.5)));
+                withPhases.add(new Measurement("PHASE-" + PHASE_NAMES[i] + "-P99 (ns)", phase.percentile(0.99)));
+            }
+            measurements = withPhases.toArray(new Measurement[withPhases.size()]);
+        }
+        LeafArena arena = this.leafArena;
+        if (arena != null) {
+            measurements = Arrays.copyOf(measurements, measurements.length + 2);
+            measurements[measurements.length - 2] = new Measurement("OFF-HEAP-BYTES (reserved)",
+                    arena.getReservedBytes());
+            measurements[measurements.length - 1] = new Measurement("OFF-HEAP-BYTES (in use)",
+                    arena.getUsedBytes());
+        }
+        return measurements;
+    }
+
+    /**
+     * The cumulative histogram of one timed phase, see PHASE_NAMES.
+     */
+    public LatencyHistogram getPhaseHistogram(int phase) {
+        return this.phaseTimes[phase];
     }
 
     public int measureTreeDepth() {
@@ -804,114 +5767,279 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
 
     protected AttributeClassObserver newNominalClassObserver() {
+        NodePool pool = this.nodePool;
+        AttributeClassObserver recycled = pool != null ? pool.pollNominal() : null;
+        if (recycled != null) {
+            return recycled;
+        }
         AttributeClassObserver nominalClassObserver = (AttributeClassObserver) getPreparedClassOption(this.nominalEstimatorOption);
-        return (AttributeClassObserver) nominalClassObserver.copy();
+        return Checkpoint.copyObserver(nominalClassObserver);
+    }
+
+    /**
+     * Whether new leaves keep their nominal counts in a NominalSlab, which
+     * reproduces the default nominal estimator only. offHeapStatistics
+     * implies it, the slab being what goes to the arena.
+     */
+    protected boolean usesNominalSlab() {
+        return (this.nominalSlabOption.isSet() || leafArena() != null)
+                && getPreparedClassOption(this.nominalEstimatorOption).getClass() == NominalAttributeClassObserver.class;
+    }
+
+    protected NominalSlab newNominalSlab(Instances header) {
+        NominalSlab slab = new NominalSlab(nominalSlabLayout(header));
+        LeafArena arena = leafArena();
+        if (arena != null) {
+            slab.attach(arena);
+        }
+        return slab;
+    }
+
+    protected NominalSlabLayout nominalSlabLayout(Instances header) {
+        NominalSlabLayout layout = this.nominalSlabLayout;
+        if (layout == null) {
+            layout = new NominalSlabLayout(header);
+            this.nominalSlabLayout = layout;
+        }
+        return layout;
     }
 
     protected AttributeClassObserver newNumericClassObserver() {
+        NodePool pool = this.nodePool;
+        AttributeClassObserver recycled = pool != null ? pool.pollNumeric() : null;
+        if (recycled != null) {
+            return recycled;
+        }
         AttributeClassObserver numericClassObserver = (AttributeClassObserver) getPreparedClassOption(this.numericEstimatorOption);
-        return (AttributeClassObserver) numericClassObserver.copy();
+        AttributeClassObserver obs = Checkpoint.copyObserver(numericClassObserver);
+        LeafArena arena = leafArena();
+        if (arena != null && obs.getClass() == HistogramNumericObserver.class) {
+            ((HistogramNumericObserver) obs).attach(arena);
+        }
+        return obs;
     }
 
     protected void attemptToSplit(ActiveLearningNode node, SplitNode parent,
             int parentIndex) {
         if (!node.observedClassDistributionIsPure()) {
             SplitCriterion splitCriterion = (SplitCriterion) getPreparedClassOption(this.splitCriterionOption);
-            AttributeSplitSuggestion[] bestSplitSuggestions = node.getBestSplitSuggestions(splitCriterion, this);
-            Arrays.sort(bestSplitSuggestions);
-            boolean shouldSplit = false;
-            if (bestSplitSuggestions.length < 2) {
-                shouldSplit = bestSplitSuggestions.length > 0;
-            } else {
-                double hoeffdingBound = computeHoeffdingBound(splitCriterion.getRangeOfMerit(node.getObservedClassDistribution()),
+            applySplitDecision(node, parent, parentIndex, evaluateSplit(node, splitCriterion));
+        }
+    }
+
+    /**
+     * Hands a split attempt of node to the background worker. The node keeps
+     * its statistics unchanged until applyCompletedSplits picks the result up.
+     */
+    protected void submitSplitAttempt(final ActiveLearningNode node) {
+        if (node.observedClassDistributionIsPure()) {
+            return;
+        }
+        if (this.splitWorker == null) {
+            // the thread ends after SPLIT_WORKER_IDLE_SECONDS without work, so
+            // copies and discarded models do not keep one each
+            ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1,
+                    SPLIT_WORKER_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread worker = new Thread(r, "RAPHT-split-worker");
+                            worker.setDaemon(true);
+                            return worker;
+                        }
+                    });
+            worker.allowCoreThreadTimeOut(true);
+            this.splitWorker = worker;
+        }
+        final SplitCriterion splitCriterion = (SplitCriterion) getPreparedClassOption(this.splitCriterionOption);
+        Future<SplitDecision> decision = this.splitWorker.submit(new Callable<SplitDecision>() {
+            @Override
+            public SplitDecision call() {
+                return evaluateSplit(node, splitCriterion);
+            }
+        });
+        node.pendingSplit = new PendingSplit(node, decision);
+        if (this.pendingSplits == null) {
+            this.pendingSplits = new ArrayList<>();
+        }
+        this.pendingSplits.add(node.pendingSplit);
+    }
+
+    /**
+     * Waits for every background split attempt and applies the decisions,
+     * so the tree has no frozen leaves.
+     */
+    protected void awaitPendingSplits() {
+        if (this.pendingSplits == null) {
+            return;
+        }
+        for (PendingSplit pending : this.pendingSplits) {
+            try {
+                pending.decision.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        applyCompletedSplits();
+    }
+
+    /**
+     * Applies every finished background split attempt whose leaf is still in
+     * the tree, then trains the instances the leaf received meanwhile.
+     */
+    protected void applyCompletedSplits() {
+        if (this.pendingSplits == null || this.pendingSplits.isEmpty()) {
+            return;
+        }
+        Iterator<PendingSplit> it = this.pendingSplits.iterator();
+        List<Instance> carried = null;
+        while (it.hasNext()) {
+            PendingSplit pending = it.next();
+            if (!pending.decision.isDone()) {
+                continue;
+            }
+            it.remove();
+            ActiveLearningNode node = pending.node;
+            node.pendingSplit = null;
+            SplitDecision decision;
+            try {
+                decision = pending.decision.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (!isAttached(node)) {
+                // pruned or evicted while it was evaluated
+                this.asyncSplitsDiscarded++;
+                releaseToPool(node);
+                continue;
+            }
+            SplitNode parent = node.getParent();
+            applySplitDecision(node, parent, parent == null ? -1 : parent.children.indexOf(node), decision);
+            this.asyncSplitsApplied++;
+            this.asyncCarriedInstances += pending.carried.size();
+            this.asyncSplitDelay += System.nanoTime() - pending.submitTime;
+            if (carried == null) {
+                carried = new ArrayList<>();
+            }
+            carried.addAll(pending.carried);
+        }
+        if (carried != null) {
+            for (Instance inst : carried) {
+                trainRouted(inst);
+            }
+        }
+    }
+
+    /**
+     * Ranks the split suggestions of node and decides, with the Hoeffding
+     * bound, whether to split. Only reads node, so it can run off the
+     * training thread while node is frozen.
+     */
+    protected SplitDecision evaluateSplit(ActiveLearningNode node, SplitCriterion splitCriterion) {
+        SplitDecision decision = new SplitDecision();
+        boolean removePoorAtts = this.removePoorAttsOption != null && this.removePoorAttsOption.isSet();
+        SplitRanking ranking = SPLIT_RANKING.get();
+        ranking.start(removePoorAtts);
+        try {
+            node.rankSplitSuggestions(splitCriterion, this, ranking);
+            decision.suggestions = ranking.top();
+            if (ranking.numSuggestions == 1) {
+                // nothing to compare against, the only suggestion is taken
+                decision.shouldSplit = true;
+            } else if (ranking.numSuggestions >= 2) {
+                double hoeffdingBound = ranking.hoeffdingBound(splitCriterion.getRangeOfMerit(node.getObservedClassDistribution()),
                         this.splitConfidenceOption.getValue(), node.getWeightSeen());
-                AttributeSplitSuggestion bestSuggestion = bestSplitSuggestions[bestSplitSuggestions.length - 1];
-                AttributeSplitSuggestion secondBestSuggestion = bestSplitSuggestions[bestSplitSuggestions.length - 2];
+                AttributeSplitSuggestion bestSuggestion = ranking.best;
+                AttributeSplitSuggestion secondBestSuggestion = ranking.second;
+                boolean shouldSplit = false;
                 if ((bestSuggestion.merit - secondBestSuggestion.merit > hoeffdingBound)
                         || (hoeffdingBound < this.tieThresholdOption.getValue())) {
                     shouldSplit = true;
                 }
-                // }
-                if ((this.removePoorAttsOption != null)
-                        && this.removePoorAttsOption.isSet()) {
+                if (removePoorAtts) {
+                    // one suggestion per attribute, so it is poor exactly when it trails by more than the bound
                     Set<Integer> poorAtts = new HashSet<Integer>();
-                    // scan 1 - add any poor to set
-                    for (int i = 0; i < bestSplitSuggestions.length; i++) {
-                        if (bestSplitSuggestions[i].splitTest != null) {
-                            int[] splitAtts = bestSplitSuggestions[i].splitTest.getAttsTestDependsOn();
-                            if (splitAtts.length == 1) {
-                                if (bestSuggestion.merit
-                                        - bestSplitSuggestions[i].merit > hoeffdingBound) {
-                                    poorAtts.add(new Integer(splitAtts[0]));
-                                }
-                            }
-                        }
-                    }
-                    // scan 2 - remove good ones from set
-                    for (int i = 0; i < bestSplitSuggestions.length; i++) {
-                        if (bestSplitSuggestions[i].splitTest != null) {
-                            int[] splitAtts = bestSplitSuggestions[i].splitTest.getAttsTestDependsOn();
-                            if (splitAtts.length == 1) {
-                                if (bestSuggestion.merit
-                                        - bestSplitSuggestions[i].merit < hoeffdingBound) {
-                                    poorAtts.remove(new Integer(splitAtts[0]));
-                                }
-                            }
+                    for (int i = 0; i < ranking.numRecorded; i++) {
+                        if (bestSuggestion.merit - ranking.merits[i] > hoeffdingBound) {
+                            poorAtts.add(ranking.attributes[i]);
                         }
                     }
-                    for (int poorAtt : poorAtts) {
-                        node.disableAttribute(poorAtt);
-                    }
+                    decision.poorAtts = poorAtts;
                 }
+                decision.shouldSplit = shouldSplit;
             }
-            if (shouldSplit) {
-                AttributeSplitSuggestion splitDecision = bestSplitSuggestions[bestSplitSuggestions.length - 1];
-                if (splitDecision.splitTest == null) {
-                    // preprune - null wins
-                    deactivateLearningNode(node, parent, parentIndex);
-                } else {
-                    // will split
-                    if (this.outputBinSplitOption.isSet()) {
-                        // get the bin
-                        String data = splitDecision.binIndex + "\n";
-                        OutputStream os = null;
-                        try {
-                            os = new FileOutputStream(new File(this.numbinOutputFile),true);
-                            os.write(data.getBytes(), 0, data.length());
-                            os.close();
-                        } catch (FileNotFoundException e) {
-                            throw new RuntimeException(e);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    SplitNode newSplit = newSplitNode(splitDecision.splitTest,
-                            node.getObservedClassDistribution(),splitDecision.numSplits() );
-                    for (int i = 0; i < splitDecision.numSplits(); i++) {
-                        Node newChild = newLearningNode(splitDecision.resultingClassDistributionFromSplit(i));
-                        newChild.lastAccess = this.instancesSeen;
-                        newSplit.setChild(i, newChild);
-                    }
-                    this.activeLeafNodeCount--;
-                    this.decisionNodeCount++;
-                    this.activeLeafNodeCount += splitDecision.numSplits();
-                    int tmpacc;
-                    if (parent == null) {
-                        tmpacc = this.treeRoot.lastAccess;
-                        this.treeRoot = newSplit;
-                    } else {
-                        tmpacc = parent.lastAccess;
-                        parent.setChild(parentIndex, newSplit);
-                    }
-                    newSplit.lastAccess = tmpacc;
-                    // get tree nodes
-                    int ttnodes = this.inactiveLeafNodeCount + this.decisionNodeCount + this.activeLeafNodeCount;
-                    if (ttnodes > this.maxNodeSize)
-                        this.maxNodeSize = ttnodes;
-                    this.averageCount++;
-                    this.averageNodeSize = this.averageNodeSize + (ttnodes - averageNodeSize)/this.averageCount;
+        } finally {
+            ranking.clear();
+        }
+        return decision;
+    }
 
+    protected void applySplitDecision(ActiveLearningNode node, SplitNode parent,
+            int parentIndex, SplitDecision decision) {
+        AttributeSplitSuggestion[] bestSplitSuggestions = decision.suggestions;
+        if (decision.poorAtts != null) {
+            for (int poorAtt : decision.poorAtts) {
+                node.disableAttribute(poorAtt);
+            }
+        }
+        // evaluating may have settled buffered statistics, disabling attributes shrinks the leaf
+        refreshByteSize(node);
+        if (decision.shouldSplit) {
+            AttributeSplitSuggestion splitDecision = bestSplitSuggestions[bestSplitSuggestions.length - 1];
+            if (splitDecision.splitTest == null) {
+                // preprune - null wins
+                deactivateLearningNode(node, parent, parentIndex);
+            } else {
+                // will split
+                if (this.outputBinSplitOption.isSet()) {
+                    // get the bin
+                    if (this.splitEventLog == null) {
+                        this.splitEventLog = new SplitEventLog(this.numbinOutputFile,
+                                this.outputSplitDetailsOption.isSet(), SplitEventLog.DEFAULT_CAPACITY);
+                    }
+                    this.splitEventLog.record(splitDecision.binIndex,
+                            splitDecision.splitTest.getAttsTestDependsOn()[0],
+                            splitDecision.merit, node.getDepth(), this.instancesSeen);
                 }
+                SplitNode newSplit = newSplitNode(splitDecision.splitTest,
+                        node.getObservedClassDistribution(),splitDecision.numSplits() );
+                for (int i = 0; i < splitDecision.numSplits(); i++) {
+                    Node newChild = newLearningNode(splitDecision.resultingClassDistributionFromSplit(i));
+                    newChild.lastAccess = accessTime();
+                    newSplit.setChild(i, newChild);
+                }
+                this.activeLeafNodeCount--;
+                this.decisionNodeCount++;
+                this.activeLeafNodeCount += splitDecision.numSplits();
+                int tmpacc;
+                if (parent == null) {
+                    tmpacc = this.treeRoot.lastAccess;
+                    setTreeRoot(newSplit);
+                } else {
+                    tmpacc = parent.lastAccess;
+                    parent.setChild(parentIndex, newSplit);
+                }
+                newSplit.lastAccess = tmpacc;
+                nodeDetached(node);
+                subtreeAttached(newSplit);
+                releaseNode(node);
+                releaseToPool(node);
+                indexSubtree(newSplit);
+                // get tree nodes
+                recordTreeSize();
+                TreeEvents.Split event = new TreeEvents.Split();
+                if (event.shouldCommit()) {
+                    fillEvent(event, node.getDepth());
+                    event.attribute = splitDecision.splitTest.getAttsTestDependsOn()[0];
+                    event.merit = splitDecision.merit;
+                    event.commit();
+                }
+                enforceByteBudget();
+
             }
         }
     }
@@ -922,10 +6050,16 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
             SplitNode parent, int parentBranch) {
         Node newLeaf = new InactiveLearningNode(toDeactivate.getObservedClassDistribution());
         if (parent == null) {
-            this.treeRoot = newLeaf;
+            setTreeRoot(newLeaf);
         } else {
             parent.setChild(parentBranch, newLeaf);
         }
+        nodeDetached(toDeactivate);
+        subtreeAttached(newLeaf);
+        releaseNode(toDeactivate);
+        releaseToPool(toDeactivate);
+        indexNode(newLeaf);
+        this.structureVersion++;
         this.activeLeafNodeCount--;
         this.inactiveLeafNodeCount++;
     }
@@ -969,24 +6103,81 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
 
         private static final long serialVersionUID = 1L;
 
+        // rebuilt from the observers when missing, volatile because readers of a published tree build their own
+        protected transient volatile NaiveBayesTable naiveBayesTable;
+
+        // last copy published for concurrentPrediction and the weight seen when it was frozen
+        protected transient PublishedNode frozen;
+
+        protected transient double frozenWeightSeen;
+
         public LearningNodeNB(double[] initialClassObservations) {
             super(initialClassObservations);
         }
 
+        @Override
+        public void learnFromInstance(Instance inst, RAPHT ht) {
+            super.learnFromInstance(inst, ht);
+            NaiveBayesTable table = this.naiveBayesTable;
+            if (table != null && !table.refresh(inst, this)) {
+                this.naiveBayesTable = null;
+            }
+        }
+
         @Override
         public double[] getClassVotes(Instance inst, RAPHT ht) {
             if (getWeightSeen() >= ht.nbThresholdOption.getValue()) {
-                return NaiveBayes.doNaiveBayesPrediction(inst,
-                        this.observedClassDistribution,
-                        this.attributeObservers);
+                return naiveBayesVotes(inst);
             }
             return super.getClassVotes(inst, ht);
         }
 
+        /**
+         * Same votes as NaiveBayes.doNaiveBayesPrediction on this leaf's
+         * observers, once settled, scored from the leaf's NaiveBayesTable.
+         * The zeros a sparse leaf has not settled are scored by the table
+         * without adding them to the observers, unless it asks an observer
+         * of another type directly.
+         */
+        public double[] naiveBayesVotes(Instance inst) {
+            NaiveBayesTable table = this.naiveBayesTable;
+            if (table == null || !table.matches(this)) {
+                table = new NaiveBayesTable(this);
+                this.naiveBayesTable = table;
+            }
+            if (table.asksObservers()) {
+                settleSparse();
+            }
+            return table.votes(inst, this);
+        }
+
+        @Override
+        protected void observerCreated(int attIndex) {
+            NaiveBayesTable table = this.naiveBayesTable;
+            if (table != null && !table.observerCreated(this, attIndex)) {
+                this.naiveBayesTable = null;
+            }
+        }
+
+        @Override
+        protected void observerSettled(int attIndex, int classVal) {
+            NaiveBayesTable table = this.naiveBayesTable;
+            if (table != null && !table.refresh(this, attIndex, classVal, -1)) {
+                this.naiveBayesTable = null;
+            }
+        }
+
         @Override
         public void disableAttribute(int attIndex) {
             // should not disable poor atts - they are used in NB calc
         }
+
+        @Override
+        protected void release(NodePool pool) {
+            super.release(pool);
+            this.naiveBayesTable = null;
+            this.frozen = null;
+        }
     }
 
     public static class LearningNodeNBAdaptive extends LearningNodeNB {
@@ -1001,14 +6192,20 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
             super(initialClassObservations);
         }
 
+        @Override
+        protected void reset(double[] initialClassObservations) {
+            super.reset(initialClassObservations);
+            this.mcCorrectWeight = 0.0;
+            this.nbCorrectWeight = 0.0;
+        }
+
         @Override
         public void learnFromInstance(Instance inst, RAPHT ht) {
             int trueClass = (int) inst.classValue();
             if (this.observedClassDistribution.maxIndex() == trueClass) {
                 this.mcCorrectWeight += inst.weight();
             }
-            if (Utils.maxIndex(NaiveBayes.doNaiveBayesPrediction(inst,
-                    this.observedClassDistribution, this.attributeObservers)) == trueClass) {
+            if (Utils.maxIndex(naiveBayesVotes(inst)) == trueClass) {
                 this.nbCorrectWeight += inst.weight();
             }
             super.learnFromInstance(inst, ht);
@@ -1019,40 +6216,540 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
             if (this.mcCorrectWeight > this.nbCorrectWeight) {
                 return this.observedClassDistribution.getArrayCopy();
             }
-            return NaiveBayes.doNaiveBayesPrediction(inst,
-                    this.observedClassDistribution, this.attributeObservers);
+            return naiveBayesVotes(inst);
         }
     }
 
-    public int getNodeDepth(Node wanted) {
-        if (wanted == this.treeRoot)
-            return 0;
-        else
-            return getNodeSubTreeDepth(treeRoot, wanted);
-    }
+    /**
+     * Naive Bayes scoring tables of a leaf, in log space. For every
+     * attribute and class (laid out attribute-major) a Gaussian observer
+     * contributes its mean, log scale and half precision, and a nominal
+     * observer its log(count + 1) per value and log(total + values), so a
+     * prediction is one pass over primitive arrays plus one exp per class
+     * instead of a density evaluation per attribute and class. The entries
+     * of a class are refreshed as the leaf learns from an instance of that
+     * class, observers created later are added in place; observers of other
+     * types are still asked directly. For a sparse leaf every entry includes
+     * the zeros its observer has not settled yet, as if they were added at
+     * once, and is re-derived from the observer when that number changed.
+     */
+    protected static final class NaiveBayesTable {
 
-    public int getNodeSubTreeDepth(Node subTreeRoot, Node wanted) {
-        ArrayList<Node> l = new ArrayList<>();
-//        I believe this is not going to be used...
-        if (subTreeRoot instanceof LearningNode)
-            return 0;
-        else if (subTreeRoot != null) {
-            for (Node c : ((SplitNode) subTreeRoot).children) {
-                if (c == wanted) {
-                    return 1;
+        private static final byte SKIP = 0;
+
+        private static final byte GAUSSIAN = 1;
+
+        private static final byte NOMINAL = 2;
+
+        private static final byte OTHER = 3;
+
+        private static final byte SLAB = 4;
+
+        private static final double[] NO_COUNTS = new double[0];
+
+        private final int numClasses;
+
+        // attributes covered, the arrays below may have room for more
+        private int numAttributes;
+
+        private AttributeClassObserver[] observers;
+
+        private List<?>[] perClass;
+
+        private byte[] kinds;
+
+        private boolean[] pointMass;
+
+        private double[] mean;
+
+        private double[] logScale;
+
+        private double[] halfPrecision;
+
+        private double[][] logCounts;
+
+        private double[] logTotal;
+
+        // the unsettled zeros each entry includes
+        private double[] zeros;
+
+        // Gaussian entries of a sparse leaf: the estimator's own statistics,
+        // to add other numbers of zeros to without reading it again
+        private double[] observedWeight;
+
+        private double[] observedMean;
+
+        private double[] observedVarianceSum;
+
+        // whether an observer is asked directly, which sees only settled zeros
+        private boolean asksObservers;
+
+        protected NaiveBayesTable(LearningNodeNB leaf) {
+            this.numClasses = leaf.observedClassDistribution.numValues();
+            this.numAttributes = leaf.attributeObservers.size();
+            if (leaf.sparseObserved != null) {
+                this.observedWeight = NO_COUNTS;
+                this.observedMean = NO_COUNTS;
+                this.observedVarianceSum = NO_COUNTS;
+            }
+            allocate(this.numAttributes);
+            for (int a = 0; a < this.numAttributes; a++) {
+                load(leaf, a);
+            }
+        }
+
+        /**
+         * Copy for a leaf holding copies of the observers source was built
+         * from, see freezeNBLeaf.
+         */
+        protected NaiveBayesTable(NaiveBayesTable source, LearningNodeNB leaf) {
+            this.numClasses = source.numClasses;
+            this.numAttributes = source.numAttributes;
+            allocate(this.numAttributes);
+            for (int a = 0; a < this.numAttributes; a++) {
+                bind(a, leaf.attributeObservers.get(a));
+            }
+            int entries = this.numAttributes * this.numClasses;
+            System.arraycopy(source.pointMass, 0, this.pointMass, 0, entries);
+            System.arraycopy(source.mean, 0, this.mean, 0, entries);
+            System.arraycopy(source.logScale, 0, this.logScale, 0, entries);
+            System.arraycopy(source.halfPrecision, 0, this.halfPrecision, 0, entries);
+            System.arraycopy(source.logTotal, 0, this.logTotal, 0, entries);
+            System.arraycopy(source.zeros, 0, this.zeros, 0, entries);
+            for (int entry = 0; entry < entries; entry++) {
+                double[] row = source.logCounts[entry];
+                this.logCounts[entry] = row == null || row.length == 0 ? row : row.clone();
+            }
+        }
+
+        private void allocate(int capacity) {
+            int entries = capacity * this.numClasses;
+            if (this.observers == null) {
+                this.observers = new AttributeClassObserver[capacity];
+                this.perClass = new List<?>[capacity];
+                this.kinds = new byte[capacity];
+                this.pointMass = new boolean[entries];
+                this.mean = new double[entries];
+                this.logScale = new double[entries];
+                this.halfPrecision = new double[entries];
+                this.logCounts = new double[entries][];
+                this.logTotal = new double[entries];
+                this.zeros = new double[entries];
+            } else {
+                this.observers = Arrays.copyOf(this.observers, capacity);
+                this.perClass = Arrays.copyOf(this.perClass, capacity);
+                this.kinds = Arrays.copyOf(this.kinds, capacity);
+                this.pointMass = Arrays.copyOf(this.pointMass, entries);
+                this.mean = Arrays.copyOf(this.mean, entries);
+                this.logScale = Arrays.copyOf(this.logScale, entries);
+                this.halfPrecision = Arrays.copyOf(this.halfPrecision, entries);
+                this.logCounts = Arrays.copyOf(this.logCounts, entries);
+                this.logTotal = Arrays.copyOf(this.logTotal, entries);
+                this.zeros = Arrays.copyOf(this.zeros, entries);
+            }
+            if (this.observedWeight != null) {
+                this.observedWeight = Arrays.copyOf(this.observedWeight, entries);
+                this.observedMean = Arrays.copyOf(this.observedMean, entries);
+                this.observedVarianceSum = Arrays.copyOf(this.observedVarianceSum, entries);
+            }
+        }
+
+        private void bind(int a, AttributeClassObserver obs) {
+            this.observers[a] = obs;
+            this.kinds[a] = obs == null ? SKIP : OTHER;
+            if (obs != null && obs.getClass() == NominalAttributeClassObserver.class) {
+                this.perClass[a] = ((NominalAttributeClassObserver) obs).attValDistPerClass;
+                this.kinds[a] = NOMINAL;
+            } else if (obs != null && obs.getClass() == NominalSlabObserver.class) {
+                this.kinds[a] = SLAB;
+            } else if (obs != null && obs.getClass() == GaussianNumericAttributeClassObserver.class) {
+                try {
+                    Checkpoint.initFields();
+                    this.perClass[a] = (List<?>) Checkpoint.gaussianEstimators.get(obs);
+                    this.kinds[a] = GAUSSIAN;
+                } catch (IOException | IllegalAccessException e) {
+                    // scored through the observer
+                }
+            }
+            this.asksObservers |= this.kinds[a] == OTHER;
+        }
+
+        protected boolean asksObservers() {
+            return this.asksObservers;
+        }
+
+        private void load(LearningNodeNB leaf, int a) {
+            bind(a, leaf.attributeObservers.get(a));
+            for (int c = 0; c < this.numClasses; c++) {
+                setEntry(a, c, -1, unsettledZeros(leaf, a, c));
+            }
+        }
+
+        /**
+         * The weight of class classVal a sparse leaf learned with attribute
+         * attIndex zero and has not added to its observer yet.
+         */
+        private static double unsettledZeros(LearningNodeNB leaf, int attIndex, int classVal) {
+            AutoExpandVector<double[]> sparseObserved = leaf.sparseObserved;
+            if (sparseObserved == null || attIndex >= sparseObserved.size()) {
+                return 0.0;
+            }
+            double[] observed = sparseObserved.get(attIndex);
+            if (observed == null || classVal >= observed.length) {
+                return 0.0;
+            }
+            double zeros = leaf.sparseClassWeights.getValue(classVal) - observed[classVal];
+            return zeros > 0.0 ? zeros : 0.0;
+        }
+
+        protected boolean matches(LearningNodeNB leaf) {
+            return this.numClasses == leaf.observedClassDistribution.numValues()
+                    && this.numAttributes == leaf.attributeObservers.size()
+                    && (this.observedWeight != null) == (leaf.sparseObserved != null);
+        }
+
+        /**
+         * Adds an observer the leaf created after the table was built,
+         * false when the table has to be rebuilt instead.
+         */
+        protected boolean observerCreated(LearningNodeNB leaf, int attIndex) {
+            if (attIndex < this.numAttributes && this.observers[attIndex] != null) {
+                return false;
+            }
+            if (attIndex >= this.observers.length) {
+                allocate(Math.max(attIndex + 1, 2 * this.observers.length));
+            }
+            this.numAttributes = Math.max(this.numAttributes, attIndex + 1);
+            load(leaf, attIndex);
+            return true;
+        }
+
+        /**
+         * Brings the entries of the instance's class up to date after the
+         * leaf learned from it, false when the table has to be rebuilt. A
+         * sparse leaf only observed the instance's non-zero entries.
+         */
+        protected boolean refresh(Instance inst, LearningNodeNB leaf) {
+            int classValue = (int) inst.classValue();
+            if (classValue >= this.numClasses || !matches(leaf)) {
+                return false;
+            }
+            if (leaf.sparseObserved != null) {
+                int classIndex = inst.classIndex();
+                for (int k = 0; k < inst.numValues(); k++) {
+                    int instAttIndex = inst.index(k);
+                    double x = inst.valueSparse(k);
+                    if (instAttIndex == classIndex || x == 0.0 || Double.isNaN(x)) {
+                        continue;
+                    }
+                    int a = instAttIndex < classIndex ? instAttIndex : instAttIndex - 1;
+                    if (!refresh(leaf, a, classValue, (int) x)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            int limit = Math.min(this.numAttributes, inst.numAttributes() - 1);
+            for (int a = 0; a < limit; a++) {
+                double x = inst.value(modelAttIndexToInstanceAttIndex(a, inst));
+                if (!Double.isNaN(x) && !refresh(leaf, a, classValue, (int) x)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Re-derives one attribute and class after its observer changed,
+         * with value the only nominal value whose count changed or -1.
+         * False when the table has to be rebuilt.
+         */
+        protected boolean refresh(LearningNodeNB leaf, int attIndex, int classVal, int value) {
+            if (classVal >= this.numClasses || attIndex >= this.numAttributes
+                    || leaf.attributeObservers.get(attIndex) != this.observers[attIndex]) {
+                return false;
+            }
+            setEntry(attIndex, classVal, value, unsettledZeros(leaf, attIndex, classVal));
+            return true;
+        }
+
+        /**
+         * Derives one attribute and class from the observer with zeros more
+         * weight at value 0.
+         */
+        private void setEntry(int a, int c, int value, double zeros) {
+            int entry = a * this.numClasses + c;
+            this.zeros[entry] = zeros;
+            if (this.kinds[a] == GAUSSIAN) {
+                setGaussian(entry, (GaussianEstimator) this.perClass[a].get(c), zeros);
+            } else if (this.kinds[a] == NOMINAL) {
+                setNominal(entry, (DoubleVector) this.perClass[a].get(c), value, zeros);
+            } else if (this.kinds[a] == SLAB) {
+                setSlab(entry, (NominalSlabObserver) this.observers[a], c, value, zeros);
+            }
+        }
+
+        private void setGaussian(int entry, GaussianEstimator estimator, double zeros) {
+            double weight = estimator != null ? estimator.getTotalWeightObserved() : 0.0;
+            if (this.observedWeight == null) {
+                // a dense leaf
+                setGaussian(entry, weight, weight > 0.0 ? estimator.getMean() : 0.0,
+                        weight > 0.0 ? estimator.getStdDev() : 0.0);
+                return;
+            }
+            this.observedWeight[entry] = weight;
+            this.observedMean[entry] = weight > 0.0 ? estimator.getMean() : 0.0;
+            this.observedVarianceSum[entry] = weight > 0.0 ? varianceSum(estimator) : 0.0;
+            settleGaussian(entry, zeros);
+        }
+
+        private static double varianceSum(GaussianEstimator estimator) {
+            double weight = estimator.getTotalWeightObserved();
+            if (weight > 1.0) {
+                return estimator.getVariance() * (weight - 1.0);
+            }
+            try {
+                // getVariance is 0 up to a weight of 1
+                return Checkpoint.estimatorVarianceSum.getDouble(estimator);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * The entry of a sparse leaf's estimator after
+         * GaussianEstimator.addObservation(0, zeros), computed from the
+         * statistics kept by setGaussian.
+         */
+        private void settleGaussian(int entry, double zeros) {
+            this.zeros[entry] = zeros;
+            double weight = this.observedWeight[entry];
+            double mean = this.observedMean[entry];
+            double varianceSum = this.observedVarianceSum[entry];
+            if (zeros > 0.0) {
+                if (weight > 0.0) {
+                    double lastMean = mean;
+                    weight += zeros;
+                    mean = lastMean + zeros * (0.0 - lastMean) / weight;
+                    varianceSum += zeros * (0.0 - lastMean) * (0.0 - mean);
+                } else {
+                    weight = zeros;
+                    mean = 0.0;
+                }
+            }
+            setGaussian(entry, weight, mean, weight > 1.0 ? Math.sqrt(varianceSum / (weight - 1.0)) : 0.0);
+        }
+
+        private void setGaussian(int entry, double weight, double mean, double stdDev) {
+            this.pointMass[entry] = false;
+            this.mean[entry] = 0.0;
+            this.halfPrecision[entry] = 0.0;
+            this.logScale[entry] = Double.NEGATIVE_INFINITY;
+            if (!(weight > 0.0)) {
+                return;
+            }
+            this.mean[entry] = mean;
+            if (stdDev > 0.0) {
+                this.logScale[entry] = -Math.log(GaussianEstimator.NORMAL_CONSTANT * stdDev);
+                this.halfPrecision[entry] = 1.0 / (2.0 * stdDev * stdDev);
+            } else {
+                this.pointMass[entry] = true;
+            }
+        }
+
+        /**
+         * Only the count of value changed since the last call, all counts
+         * are recomputed when value is -1 or the vector grew. zeros are
+         * added to the count of value 0.
+         */
+        private void setNominal(int entry, DoubleVector counts, int value, double zeros) {
+            int numValues = counts != null ? counts.numValues() : 0;
+            if (zeros > 0.0 && numValues == 0) {
+                numValues = 1;
+            }
+            if (numValues == 0) {
+                this.logCounts[entry] = NO_COUNTS;
+                this.logTotal[entry] = Double.POSITIVE_INFINITY;
+                return;
+            }
+            double[] row = this.logCounts[entry];
+            if (value < 0 || row == null || row.length != numValues) {
+                row = new double[numValues];
+                for (int v = 0; v < numValues; v++) {
+                    row[v] = Math.log((counts != null ? counts.getValue(v) : 0.0) + (v == 0 ? zeros : 0.0) + 1.0);
+                }
+                this.logCounts[entry] = row;
+            } else {
+                row[value] = Math.log((counts != null ? counts.getValue(value) : 0.0) + (value == 0 ? zeros : 0.0) + 1.0);
+            }
+            this.logTotal[entry] = Math.log((counts != null ? counts.sumOfValues() : 0.0) + zeros + numValues);
+        }
+
+        private void setSlab(int entry, NominalSlabObserver counts, int classVal, int value, double zeros) {
+            int numValues = counts.valuesSeen(classVal);
+            if (zeros > 0.0 && numValues == 0) {
+                numValues = 1;
+            }
+            if (numValues == 0) {
+                this.logCounts[entry] = NO_COUNTS;
+                this.logTotal[entry] = Double.POSITIVE_INFINITY;
+                return;
+            }
+            double[] row = this.logCounts[entry];
+            if (value < 0 || row == null || row.length != numValues) {
+                row = new double[numValues];
+                for (int v = 0; v < numValues; v++) {
+                    row[v] = Math.log(counts.count(v, classVal) + (v == 0 ? zeros : 0.0) + 1.0);
+                }
+                this.logCounts[entry] = row;
+            } else {
+                row[value] = Math.log(counts.count(value, classVal) + (value == 0 ? zeros : 0.0) + 1.0);
+            }
+            this.logTotal[entry] = Math.log(counts.classWeight(classVal) + zeros + numValues);
+        }
+
+        /**
+         * The votes of leaf, the leaf the table was built for or its frozen
+         * copy. Entries whose unsettled zeros changed are derived again
+         * first. The attributes a sparse leaf has no observer for were zero
+         * in every instance it learned, and are scored the way the default
+         * observers of a dense leaf would have them: a class the leaf did
+         * not learn gets no vote, and a non-zero value gets none for a
+         * numeric attribute (a point mass at zero) and 1 / (weight + 1) for
+         * a nominal one.
+         */
+        protected double[] votes(Instance inst, LearningNodeNB leaf) {
+            DoubleVector classDistribution = leaf.observedClassDistribution;
+            // the class weights a sparse leaf learned, null for a dense leaf
+            DoubleVector classWeights = leaf.sparseClassWeights;
+            AutoExpandVector<double[]> sparseObserved = leaf.sparseObserved;
+            int numSparseObserved = sparseObserved != null ? sparseObserved.size() : 0;
+            int numClasses = this.numClasses;
+            double[] learned = classWeights != null ? classWeights.getArrayRef() : null;
+            int numLearned = learned != null ? classWeights.numValues() : 0;
+            double[] votes = new double[numClasses];
+            double classSum = classDistribution.sumOfValues();
+            for (int c = 0; c < numClasses; c++) {
+                votes[c] = Math.log(classDistribution.getValue(c) / classSum);
+            }
+            int limit = Math.min(this.numAttributes, inst.numAttributes() - 1);
+            // sparse instances are walked alongside the attributes instead of searched
+            int numValues = inst.numValues();
+            boolean sparse = numValues < inst.numAttributes();
+            int k = 0;
+            int observed = 0;
+            for (int a = 0; a < limit; a++) {
+                byte kind = this.kinds[a];
+                if (kind == SKIP) {
+                    continue;
+                }
+                observed++;
+                int instAttIndex = modelAttIndexToInstanceAttIndex(a, inst);
+                double x;
+                if (sparse) {
+                    while (k < numValues && inst.index(k) < instAttIndex) {
+                        k++;
+                    }
+                    x = k < numValues && inst.index(k) == instAttIndex ? inst.valueSparse(k) : 0.0;
+                } else {
+                    x = inst.value(instAttIndex);
+                }
+                if (Double.isNaN(x)) {
+                    continue;
+                }
+                int base = a * numClasses;
+                double[] zerosObserved = a < numSparseObserved ? sparseObserved.get(a) : null;
+                if (zerosObserved != null) {
+                    for (int c = 0; c < numClasses && c < zerosObserved.length; c++) {
+                        double zeros = (c < numLearned ? learned[c] : 0.0) - zerosObserved[c];
+                        if (zeros < 0.0) {
+                            zeros = 0.0;
+                        }
+                        if (zeros != this.zeros[base + c]) {
+                            if (kind == GAUSSIAN) {
+                                settleGaussian(base + c, zeros);
+                            } else {
+                                setEntry(a, c, 0, zeros);
+                            }
+                        }
+                    }
+                }
+                if (kind == GAUSSIAN) {
+                    for (int c = 0; c < numClasses; c++) {
+                        int entry = base + c;
+                        if (this.pointMass[entry]) {
+                            votes[c] += x == this.mean[entry] ? 0.0 : Double.NEGATIVE_INFINITY;
+                        } else {
+                            double diff = x - this.mean[entry];
+                            votes[c] += this.logScale[entry] - diff * diff * this.halfPrecision[entry];
+                        }
+                    }
+                } else if (kind == NOMINAL || kind == SLAB) {
+                    int value = (int) x;
+                    for (int c = 0; c < numClasses; c++) {
+                        int entry = base + c;
+                        double[] row = this.logCounts[entry];
+                        votes[c] += (value >= 0 && value < row.length ? row[value] : 0.0) - this.logTotal[entry];
+                    }
                 } else {
-                    l.add(c);
+                    for (int c = 0; c < numClasses; c++) {
+                        votes[c] += Math.log(this.observers[a].probabilityOfAttributeValueGivenClass(x, c));
+                    }
+                }
+            }
+            if (classWeights != null && observed < inst.numAttributes() - 1) {
+                scoreUnobserved(inst, classWeights, votes);
+            }
+            for (int c = 0; c < numClasses; c++) {
+                votes[c] = Math.exp(votes[c]);
+            }
+            return votes;
+        }
+
+        private void scoreUnobserved(Instance inst, DoubleVector classWeights, double[] votes) {
+            int numClasses = this.numClasses;
+            for (int c = 0; c < numClasses; c++) {
+                if (classWeights.getValue(c) <= 0.0) {
+                    votes[c] = Double.NEGATIVE_INFINITY;
                 }
             }
-            // none of the children is the wanted node
-            // check the grandchildren of subtreeroot
-            for (Node c : l) {
-                int aux = this.getNodeSubTreeDepth(c, wanted);
-                if (aux > 0)
-                    return 1 + aux;
+            int classIndex = inst.classIndex();
+            for (int k = 0; k < inst.numValues(); k++) {
+                int instAttIndex = inst.index(k);
+                double x = inst.valueSparse(k);
+                if (instAttIndex == classIndex || x == 0.0 || Double.isNaN(x)) {
+                    continue;
+                }
+                int a = instAttIndex < classIndex ? instAttIndex : instAttIndex - 1;
+                if (a < this.numAttributes && this.kinds[a] != SKIP) {
+                    continue;
+                }
+                boolean nominal = inst.attribute(instAttIndex).isNominal();
+                for (int c = 0; c < numClasses; c++) {
+                    votes[c] += nominal ? -Math.log(classWeights.getValue(c) + 1.0) : Double.NEGATIVE_INFINITY;
+                }
             }
         }
-        return -100;
+    }
+
+    /**
+     * Saves the model to file in the Checkpoint format. Pending background
+     * split attempts are waited for and applied first.
+     */
+    public void writeCheckpoint(File file) throws IOException {
+        Checkpoint.write(this, file);
+    }
+
+    /**
+     * Restores a model saved with writeCheckpoint, including its options and
+     * stream header, ready to continue training.
+     */
+    public static RAPHT readCheckpoint(File file) throws IOException {
+        return Checkpoint.read(file);
+    }
+
+    public int getNodeDepth(Node wanted) {
+        return wanted.depth;
     }
 
     protected LearningNode newLearningNode() {
@@ -1060,6 +6757,13 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
     }
 
     protected LearningNode newLearningNode(double[] initialClassObservations) {
+        NodePool pool = nodePool();
+        if (pool != null) {
+            ActiveLearningNode recycled = pool.poll(initialClassObservations);
+            if (recycled != null) {
+                return recycled;
+            }
+        }
         LearningNode ret;
         int predictionOption = this.leafpredictionOption.getChosenIndex();
         if (predictionOption == 0) { //MC
@@ -1072,6 +6776,60 @@ public class RAPHT extends AbstractClassifier implements MultiClassClassifier,
         return ret;
     }
 
+    /**
+     * The pool of this model, created on first use; null when nodePool is
+     * 0 and there is no leaf arena, whose blocks are freed as the pool
+     * resets the nodes that left the tree, or when the model trains
+     * concurrently.
+     */
+    protected NodePool nodePool() {
+        if (this.nodePool == null && (this.nodePoolOption.getValue() > 0 || leafArena() != null)
+                && !this.concurrentTrainingOption.isSet()) {
+            int capacity = this.nodePoolOption.getValue();
+            int numAttributes = getModelContext() != null ? getModelContext().numAttributes() - 1 : 1;
+            int predictionOption = this.leafpredictionOption.getChosenIndex();
+            Class<?> nodeClass = predictionOption == 0 ? ActiveLearningNode.class
+                    : predictionOption == 1 ? LearningNodeNB.class : LearningNodeNBAdaptive.class;
+            this.nodePool = new NodePool(capacity,
+                    (int) Math.min((long) capacity * Math.max(numAttributes, 1), Integer.MAX_VALUE), nodeClass,
+                    getPreparedClassOption(this.numericEstimatorOption).getClass(),
+                    getPreparedClassOption(this.nominalEstimatorOption).getClass());
+        }
+        return this.nodePool;
+    }
+
+    /**
+     * The arena of offHeapStatistics, created on first use; null when the
+     * option is off. resetLearningImpl rejects the option where it would
+     * move nothing.
+     */
+    protected LeafArena leafArena() {
+        if (this.leafArena == null && this.offHeapStatisticsOption.isSet()) {
+            this.leafArena = new LeafArena();
+        }
+        return this.leafArena;
+    }
+
+    /**
+     * Stages the learning nodes of a subtree that left the tree for reuse.
+     */
+    protected void releaseToPool(Node node) {
+        NodePool pool = nodePool();
+        if (pool != null && node != null) {
+            pool.offerSubtree(node);
+        }
+    }
+
+    /**
+     * Makes the nodes staged since the last training call reusable, at a
+     * point where the training path holds none of them.
+     */
+    protected void recycleReleasedNodes() {
+        if (this.nodePool != null) {
+            this.nodePool.recycleStaged();
+        }
+    }
+
     @Override
     public ImmutableCapabilities defineImmutableCapabilities() {
       if (this.getClass() == RAPHT.class)
@@ -0,0 +1,575 @@
+/*
+ *    RAPHTTest.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.trees;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import moa.classifiers.core.splitcriteria.InfoGainSplitCriterion;
+import moa.core.SizeOf;
+import moa.core.Utils;
+import moa.streams.InstanceStream;
+import moa.streams.generators.AgrawalGenerator;
+import moa.streams.generators.LEDGenerator;
+import moa.streams.generators.RandomRBFGenerator;
+import moa.streams.generators.RandomTreeGenerator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks of RAPHT against the plain recomputations its bookkeeping replaces.
+ */
+public class RAPHTTest {
+
+    protected static RAPHT newTree(String options, InstanceStream stream) {
+        RAPHT tree = new RAPHT();
+        tree.getOptions().setViaCLIString(options);
+        tree.setModelContext(stream.getHeader());
+        tree.prepareForUse();
+        return tree;
+    }
+
+    protected static InstanceStream agrawal() {
+        AgrawalGenerator stream = new AgrawalGenerator();
+        stream.prepareForUse();
+        return stream;
+    }
+
+    protected static InstanceStream led() {
+        LEDGenerator stream = new LEDGenerator();
+        stream.prepareForUse();
+        return stream;
+    }
+
+    protected static InstanceStream randomTree() {
+        RandomTreeGenerator stream = new RandomTreeGenerator();
+        stream.prepareForUse();
+        return stream;
+    }
+
+    /**
+     * Tests then trains on n instances of stream, checking the running byte
+     * size against a full measurement every period instances.
+     */
+    protected static void checkRunningByteSize(String options, InstanceStream stream, int n, int period) {
+        RAPHT tree = newTree(options, stream);
+        for (int i = 1; i <= n; i++) {
+            Instance inst = stream.nextInstance().getData();
+            tree.getVotesForInstance(inst);
+            tree.trainOnInstance(inst);
+            if (i % period == 0) {
+                assertEquals("[" + options + "] after " + i + " instances",
+                        tree.calcByteSize(), tree.measureByteSize());
+            }
+        }
+    }
+
+    @Test
+    public void runningByteSizeMatchesFullMeasurement() {
+        String[] options = {"", "-l MC", "-l NB", "-b", "-r -p", "-Z", "-Z -l NB",
+                "-n (moa.classifiers.trees.RAPHT$HistogramNumericObserver -n 16)",
+                "-F -n (moa.classifiers.trees.RAPHT$HistogramNumericObserver -n 16)",
+                "-u -W 1000 -T 1", "-u -W 1000 -T 1 -x -E 100", "-u -R -W 1000 -T 1", "-a", "-M", "-A"};
+        for (String option : options) {
+            checkRunningByteSize(option, agrawal(), 20000, 2000);
+            checkRunningByteSize(option, led(), 20000, 2000);
+            checkRunningByteSize(option, randomTree(), 20000, 2000);
+        }
+    }
+
+    /**
+     * A sparse leaf scores the attributes it has no observer for as the
+     * all-zero observers of a dense leaf, so sparseLeaves does not change
+     * Naive Bayes votes on dense streams.
+     */
+    @Test
+    public void sparseLeavesVoteLikeDenseLeaves() {
+        for (String options : new String[]{"-l NB", "-l NBAdaptive", "-l NBAdaptive -N"}) {
+            for (InstanceStream stream : new InstanceStream[]{agrawal(), led()}) {
+                RAPHT dense = newTree(options, stream);
+                RAPHT sparse = newTree(options + " -Z", stream);
+                for (int i = 0; i < 30000; i++) {
+                    Instance inst = stream.nextInstance().getData();
+                    double[] expected = dense.getVotesForInstance(inst);
+                    double[] actual = sparse.getVotesForInstance(inst);
+                    assertEquals("[" + options + "] instance " + i, Utils.maxIndex(expected), Utils.maxIndex(actual));
+                    for (int c = 0; c < expected.length; c++) {
+                        assertEquals(expected[c], actual[c], 1e-9 * Math.abs(expected[c]));
+                    }
+                    dense.trainOnInstance(inst);
+                    sparse.trainOnInstance(inst);
+                }
+            }
+        }
+    }
+
+    /**
+     * The primitive information gain of a binary split is the merit
+     * InfoGainSplitCriterion computes, to the last bit, including splits
+     * with empty classes and branches below minBranchFrac.
+     */
+    @Test
+    public void binaryMeritMatchesInfoGain() {
+        Random random = new Random(1);
+        InfoGainSplitCriterion reference = new InfoGainSplitCriterion();
+        RAPHT.PreSplitInfoGain infoGain = new RAPHT.PreSplitInfoGain();
+        infoGain.minBranchFracOption = reference.minBranchFracOption;
+        for (int i = 0; i < 10000; i++) {
+            int numClasses = 2 + random.nextInt(9);
+            double[] left = new double[numClasses];
+            double[] right = new double[numClasses];
+            double[] preSplitDist = new double[numClasses];
+            for (int c = 0; c < numClasses; c++) {
+                left[c] = random.nextInt(4) == 0 ? 0.0 : random.nextDouble() * 100.0;
+                right[c] = random.nextInt(4) == 0 ? 0.0 : random.nextDouble() * (i % 10 == 0 ? 0.01 : 100.0);
+                preSplitDist[c] = left[c] + right[c];
+            }
+            infoGain.preSplitDist = preSplitDist;
+            infoGain.preSplitEntropy = InfoGainSplitCriterion.computeEntropy(preSplitDist);
+            assertEquals(reference.getMeritOfSplit(preSplitDist, new double[][]{left, right}),
+                    infoGain.binaryMerit(left, right), 0.0);
+        }
+    }
+
+    /**
+     * With pre-pruning off and a single attribute a leaf has one split
+     * suggestion, which is taken without a Hoeffding bound test.
+     */
+    @Test
+    public void singleSuggestionSplits() {
+        RandomRBFGenerator stream = new RandomRBFGenerator();
+        stream.numAttsOption.setValue(1);
+        stream.prepareForUse();
+        // sequential and parallel ranking, and ranking on the split worker
+        for (String options : new String[]{"-p -l MC", "-p -l MC -j 1", "-p -l MC -a"}) {
+            stream.restart();
+            RAPHT tree = newTree(options, stream);
+            for (int i = 0; i < 20000; i++) {
+                tree.trainOnInstance(stream.nextInstance().getData());
+            }
+            tree.awaitPendingSplits();
+            assertTrue("[" + options + "]", tree.decisionNodeCount > 0);
+        }
+    }
+
+    /**
+     * The budget is enforced after every instance, not only after splits,
+     * including subtree raising over the multiway splits of nominal
+     * attributes.
+     */
+    @Test
+    public void byteBudgetHoldsAfterEveryInstance() {
+        String[] options = {"-m 30000", "-m 30000 -R", "-m 30000 -R -u -W 1000 -T 1 -B 50",
+                "-m 30000 -l NB", "-m 30000 -M"};
+        for (String option : options) {
+            InstanceStream stream = randomTree();
+            RAPHT tree = newTree(option, stream);
+            for (int i = 1; i <= 20000; i++) {
+                tree.trainOnInstance(stream.nextInstance().getData());
+                assertTrue("[" + option + "] over budget after " + i + " instances",
+                        tree.measureByteSize() <= 30000);
+            }
+            assertEquals(tree.calcByteSize(), tree.measureByteSize());
+            assertTrue("[" + option + "] never evicted", tree.budgetEvictions > 0);
+        }
+    }
+
+    /**
+     * Fast-forwards the access clock across 2^31 instances with intervals
+     * above 2^29 from depth 1 on: every node left idle has to be stale by its
+     * offsets afterwards, and the next prune check has to remove it.
+     */
+    @Test
+    public void accessClockKeepsIdleNodesStaleAcross2To31() {
+        InstanceStream stream = randomTree();
+        RAPHT tree = new RAPHT() {
+            @Override
+            public double get2AtDepth(int depth) {
+                return Math.pow(2, 28 + depth);
+            }
+        };
+        tree.getOptions().setViaCLIString("-u -W 1000 -T 100");
+        tree.setModelContext(stream.getHeader());
+        tree.prepareForUse();
+        for (int i = 0; i < 20000; i++) {
+            tree.trainOnInstance(stream.nextInstance().getData());
+        }
+        int splits = tree.decisionNodeCount;
+        assertTrue(splits > 1);
+        for (int i = 0; i < 5; i++) {
+            tree.instancesSeen += RAPHT.ACCESS_REBASE_LIMIT;
+            tree.rebaseAccessClock();
+        }
+        checkStale(tree, tree.treeRoot, tree.accessTime());
+        for (int i = 0; i < 1000; i++) {
+            tree.trainOnInstance(stream.nextInstance().getData());
+        }
+        assertTrue(tree.decisionNodeCount < splits);
+    }
+
+    private static void checkStale(RAPHT tree, RAPHT.Node node, int ts) {
+        if (node != tree.treeRoot) {
+            assertTrue("depth " + node.depth, ts - node.lastAccess >= tree.getWorstExpectedInterval(node.depth));
+        }
+        if (node instanceof RAPHT.SplitNode) {
+            for (RAPHT.Node child : ((RAPHT.SplitNode) node).children) {
+                if (child != null) {
+                    checkStale(tree, child, ts);
+                }
+            }
+        }
+    }
+
+    /**
+     * An amortized sweep that checks one node per instance only reaches
+     * stale nodes in its later slices, and adaptPruneWindow has to see those
+     * prunes.
+     */
+    @Test
+    public void adaptivePruneWindowCountsEverySweepSlice() {
+        InstanceStream stream = randomTree();
+        final int[] prunedSweeps = new int[1];
+        RAPHT tree = new RAPHT() {
+            @Override
+            protected void adaptPruneWindow(long begin, long cost, boolean pruned, int sizeBefore) {
+                if (pruned) {
+                    prunedSweeps[0]++;
+                }
+                super.adaptPruneWindow(begin, cost, pruned, sizeBefore);
+            }
+        };
+        tree.getOptions().setViaCLIString("-u -W 1000 -T 1 -V -B 1");
+        tree.setModelContext(stream.getHeader());
+        tree.prepareForUse();
+        for (int i = 0; i < 50000; i++) {
+            tree.trainOnInstance(stream.nextInstance().getData());
+        }
+        assertTrue(tree.learnPruned + tree.splitPruned > 0);
+        assertTrue(prunedSweeps[0] > 0);
+    }
+
+    /**
+     * With concurrentPrediction and snapshotPeriod 0, a Naive Bayes leaf is
+     * frozen again only after it saw gracePeriod more weight, not on every
+     * training call.
+     */
+    @Test
+    public void concurrentPredictionRefreezesNaiveBayesLeavesPerGracePeriod() {
+        for (InstanceStream stream : new InstanceStream[]{agrawal(), led()}) {
+            RAPHT tree = newTree("-C -l NB", stream);
+            IdentityHashMap<RAPHT.Node, RAPHT.PublishedNode> frozen = new IdentityHashMap<>();
+            int refreezes = 0;
+            int n = 20000;
+            for (int i = 0; i < n; i++) {
+                tree.trainOnInstance(stream.nextInstance().getData());
+                Deque<RAPHT.Node> nodes = new ArrayDeque<>();
+                nodes.push(tree.treeRoot);
+                while (!nodes.isEmpty()) {
+                    RAPHT.Node node = nodes.pop();
+                    if (node instanceof RAPHT.SplitNode) {
+                        for (RAPHT.Node child : ((RAPHT.SplitNode) node).children) {
+                            if (child != null) {
+                                nodes.push(child);
+                            }
+                        }
+                    } else if (node instanceof RAPHT.LearningNodeNB) {
+                        RAPHT.LearningNodeNB leaf = (RAPHT.LearningNodeNB) node;
+                        assertTrue("after " + i + " instances", leaf.frozen != null
+                                && leaf.getWeightSeen() - leaf.frozenWeightSeen < tree.gracePeriodOption.getValue());
+                        RAPHT.PublishedNode previous = frozen.put(leaf, leaf.frozen);
+                        if (previous != null && previous != leaf.frozen) {
+                            refreezes++;
+                        }
+                    }
+                }
+            }
+            assertTrue(refreezes + " refreezes", refreezes <= n / tree.gracePeriodOption.getValue());
+        }
+    }
+
+    /**
+     * Copies, resets and discarded models must not each keep a split worker
+     * thread alive.
+     */
+    @Test(timeout = 30000)
+    public void splitWorkersDoNotOutliveTheirModels() throws InterruptedException {
+        InstanceStream stream = agrawal();
+        RAPHT tree = newTree("-a", stream);
+        for (int copy = 0; copy < 10; copy++) {
+            RAPHT member = (RAPHT) tree.copy();
+            for (int i = 0; i < 2000; i++) {
+                member.trainOnInstance(stream.nextInstance().getData());
+            }
+            if (copy % 2 == 0) {
+                member.resetLearning();
+            }
+        }
+        while (splitWorkerThreads() > 0) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static int splitWorkerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("RAPHT-split-worker") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A record waiting for room in a full ring returns when the log is
+     * closed, as do records made after close.
+     */
+    @Test(timeout = 30000)
+    public void splitEventLogDropsRecordsAfterClose() throws IOException, InterruptedException {
+        File file = File.createTempFile("rapht-splits", ".txt");
+        file.deleteOnExit();
+        final RAPHT.SplitEventLog log = new RAPHT.SplitEventLog(file.getPath(), false, 2);
+        Thread recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    log.record(i, 0, 0.0, 0, i);
+                }
+            }
+        });
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                log.close();
+            }
+        });
+        // holding the write lock keeps the flusher from emptying the ring
+        synchronized (log.writeLock) {
+            recorder.start();
+            while (recorder.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            closer.start();
+            recorder.join(10000);
+            assertFalse(recorder.isAlive());
+        }
+        closer.join();
+        log.record(10, 0, 0.0, 0, 10);
+    }
+
+    /**
+     * offHeapStatistics moves the nominal slab and histogram weights of the
+     * default and histogram estimators without changing a vote, and every
+     * arena block in use belongs to a leaf in the tree or the node pool.
+     */
+    @Test
+    public void offHeapStatisticsVoteLikeHeapStatistics() {
+        String[] options = {"", "-l NB", "-u -W 1000 -T 1 -R", "-u -W 1000 -T 1 -E 20 -l NBAdaptive",
+                "-n (moa.classifiers.trees.RAPHT$HistogramNumericObserver -n 16) -m 40000"};
+        for (String option : options) {
+            for (InstanceStream stream : new InstanceStream[]{agrawal(), led(), randomTree()}) {
+                // -F keeps nominal statistics in slabs, so the heap baseline is -N
+                RAPHT heap = newTree(option + " -N", stream);
+                RAPHT offHeap = newTree(option + " -F", stream);
+                for (int i = 0; i < 30000; i++) {
+                    Instance inst = stream.nextInstance().getData();
+                    double[] expected = heap.getVotesForInstance(inst);
+                    double[] actual = offHeap.getVotesForInstance(inst);
+                    for (int c = 0; c < Math.max(expected.length, actual.length); c++) {
+                        assertEquals("[" + option + "] instance " + i,
+                                c < expected.length ? expected[c] : 0.0, c < actual.length ? actual[c] : 0.0, 0.0);
+                    }
+                    heap.trainOnInstance(inst);
+                    offHeap.trainOnInstance(inst);
+                }
+                assertTrue("[" + option + "]", offHeap.leafArena.getUsedBytes() > 0);
+                offHeap.nodePool().recycleStaged();
+                long inUse = arenaBytes(offHeap.treeRoot);
+                for (RAPHT.Node pooled : offHeap.nodePool().nodes) {
+                    inUse += arenaBytes(pooled);
+                }
+                assertEquals("[" + option + "]", offHeap.leafArena.getUsedBytes(), inUse);
+            }
+        }
+    }
+
+    private static long arenaBytes(RAPHT.Node node) {
+        long bytes = 0;
+        if (node instanceof RAPHT.SplitNode) {
+            for (RAPHT.Node child : ((RAPHT.SplitNode) node).children) {
+                if (child != null) {
+                    bytes += arenaBytes(child);
+                }
+            }
+        } else if (node instanceof RAPHT.ActiveLearningNode) {
+            RAPHT.ActiveLearningNode leaf = (RAPHT.ActiveLearningNode) node;
+            if (leaf.nominalSlab != null && leaf.nominalSlab.block >= 0) {
+                bytes += 8L * (2 * leaf.nominalSlab.layout.numNominal + leaf.nominalSlab.layout.size);
+            }
+            for (Object obs : leaf.attributeObservers) {
+                if (obs instanceof RAPHT.HistogramNumericObserver && ((RAPHT.HistogramNumericObserver) obs).block >= 0) {
+                    bytes += 8L * ((RAPHT.HistogramNumericObserver) obs).blockLength;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offHeapStatisticsRejectedWithConcurrentTraining() {
+        newTree("-F -M", agrawal());
+    }
+
+    /**
+     * ByteSizeEstimator against the sizeofag agent, when the JVM runs with
+     * it. The agent does not look inside JDK collections on recent JVMs, so
+     * the reference walks the node itself: the agent's shallow size of every
+     * object it reaches, with a JDK collection counted as its object and an
+     * array of its elements. Each node's estimate has to be within 5% of that.
+     */
+    @Test
+    public void byteSizeEstimatesMatchSizeOf() {
+        assumeTrue(RAPHT.sizeOfAgentLoaded());
+        for (String options : new String[]{"", "-l NB", "-N", "-Z"}) {
+            for (InstanceStream stream : new InstanceStream[]{agrawal(), randomTree()}) {
+                RAPHT tree = newTree(options, stream);
+                for (int i = 0; i < 30000; i++) {
+                    tree.trainOnInstance(stream.nextInstance().getData());
+                }
+                assertEquals(SizeOf.sizeOf(tree), RAPHT.ByteSizeEstimator.shallowSize(RAPHT.class));
+                checkEstimates("[" + options + "] ", tree.treeRoot);
+            }
+        }
+    }
+
+    private static void checkEstimates(String options, RAPHT.Node node) {
+        String name = options + node.getClass().getSimpleName();
+        assertEquals(name, SizeOf.sizeOf(node), RAPHT.ByteSizeEstimator.shallowSize(node.getClass()));
+        long reference = SizeOf.sizeOf(node) + agentGraphSize(node.observedClassDistribution);
+        if (node instanceof RAPHT.SplitNode) {
+            RAPHT.SplitNode split = (RAPHT.SplitNode) node;
+            reference += SizeOf.sizeOf(split.children) + agentGraphSize(split.splitTest);
+        } else if (node instanceof RAPHT.ActiveLearningNode) {
+            RAPHT.ActiveLearningNode leaf = (RAPHT.ActiveLearningNode) node;
+            reference += agentGraphSize(leaf.attributeObservers, leaf.nominalSlab,
+                    leaf.sparseClassWeights, leaf.sparseObserved);
+        }
+        long estimate = node.estimateByteSize();
+        assertTrue(name + " estimated " + estimate + " B, the agent walk found " + reference + " B",
+                Math.abs(estimate - reference) <= 0.05 * reference);
+        if (node instanceof RAPHT.SplitNode) {
+            for (RAPHT.Node child : ((RAPHT.SplitNode) node).children) {
+                if (child != null) {
+                    checkEstimates(options, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Agent sizes of everything reachable from roots except nodes, the model,
+     * the shared slab layout and string literals, the objects
+     * ByteSizeEstimator counts.
+     */
+    private static long agentGraphSize(Object... roots) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Object> pending = new ArrayDeque<>();
+        for (Object root : roots) {
+            if (root != null) {
+                pending.push(root);
+            }
+        }
+        long size = 0;
+        while (!pending.isEmpty()) {
+            Object o = pending.pop();
+            if (o instanceof Class || o instanceof RAPHT || o instanceof RAPHT.Node
+                    || o instanceof RAPHT.NominalSlabLayout || !visited.add(o)
+                    || (o instanceof String && o == ((String) o).intern())) {
+                continue;
+            }
+            size += SizeOf.sizeOf(o);
+            Class<?> type = o.getClass();
+            if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive()) {
+                    for (int i = 0; i < Array.getLength(o); i++) {
+                        if (Array.get(o, i) != null) {
+                            pending.push(Array.get(o, i));
+                        }
+                    }
+                }
+                continue;
+            }
+            if (o instanceof Collection && type.getName().startsWith("java.")) {
+                Object[] elements = ((Collection<?>) o).toArray();
+                size += SizeOf.sizeOf(elements);
+                for (Object element : elements) {
+                    if (element != null) {
+                        pending.push(element);
+                    }
+                }
+                continue;
+            }
+            if (o instanceof String) {
+                size += SizeOf.sizeOf(((String) o).getBytes(StandardCharsets.ISO_8859_1));
+                continue;
+            }
+            for (Class<?> c = type; c != null && !c.getName().startsWith("java."); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        Object value = field.get(o);
+                        if (value != null) {
+                            pending.push(value);
+                        }
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        throw new AssertionError(field.toString(), e);
+                    }
+                }
+            }
+            if (o instanceof Collection) {
+                // a MOA list on top of a JDK one, such as AutoExpandVector
+                Object[] elements = ((Collection<?>) o).toArray();
+                size += SizeOf.sizeOf(elements);
+                for (Object element : elements) {
+                    if (element != null) {
+                        pending.push(element);
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}
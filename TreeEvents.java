@@ -0,0 +1,138 @@
+/*
+ *    TreeEvents.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.trees;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for structural changes in the Hoeffding tree
+ * learners of this package (RAPHT, EFDT and HoeffdingAdaptiveTree).
+ *
+ * <p>Every event records the learner, the depth of the node that changed,
+ * the node counts right after the change and the learner's instance clock,
+ * so model churn can be lined up against GC and latency events in the same
+ * recording. Callers create the event and only fill and commit it when
+ * {@link Event#shouldCommit()} is true, which keeps the cost to an
+ * allocation the JIT can usually remove when nothing is recording.</p>
+ *
+ * <p>Enable with, e.g.,
+ * <code>-XX:StartFlightRecording:filename=trees.jfr</code> and inspect with
+ * <code>jfr print --events moa.trees.* trees.jfr</code>.</p>
+ */
+public final class TreeEvents {
+
+    private TreeEvents() {
+    }
+
+    @Category({"MOA", "Trees"})
+    @StackTrace(false)
+    public abstract static class StructureEvent extends Event {
+
+        @Label("Learner")
+        public String learner;
+
+        @Label("Depth")
+        @Description("Depth of the node that changed, root is 0")
+        public int depth;
+
+        @Label("Decision Nodes")
+        public int decisionNodes;
+
+        @Label("Active Leaves")
+        public int activeLeaves;
+
+        @Label("Inactive Leaves")
+        public int inactiveLeaves;
+
+        @Label("Instances Seen")
+        @Description("Instance clock of the learner when the change happened")
+        public long instancesSeen;
+
+        public void fill(String learner, int depth, int decisionNodes,
+                int activeLeaves, int inactiveLeaves, long instancesSeen) {
+            this.learner = learner;
+            this.depth = depth;
+            this.decisionNodes = decisionNodes;
+            this.activeLeaves = activeLeaves;
+            this.inactiveLeaves = inactiveLeaves;
+            this.instancesSeen = instancesSeen;
+        }
+    }
+
+    @Name("moa.trees.Split")
+    @Label("Tree Split")
+    @Description("A leaf was replaced by a split node")
+    public static class Split extends StructureEvent {
+
+        @Label("Attribute")
+        public int attribute;
+
+        @Label("Merit")
+        public double merit;
+    }
+
+    @Name("moa.trees.Prune")
+    @Label("Tree Prune")
+    @Description("A rarely used split node was replaced by a leaf")
+    public static class Prune extends StructureEvent {
+    }
+
+    @Name("moa.trees.SubtreeRaise")
+    @Label("Tree Subtree Raise")
+    @Description("A split node was replaced by its majority child")
+    public static class SubtreeRaise extends StructureEvent {
+    }
+
+    @Name("moa.trees.Resplit")
+    @Label("Tree Resplit")
+    @Description("An internal node was re-evaluated and its split replaced")
+    public static class Resplit extends StructureEvent {
+
+        @Label("Attribute")
+        public int attribute;
+
+        @Label("Merit")
+        public double merit;
+    }
+
+    @Name("moa.trees.KillSubtree")
+    @Label("Tree Kill Subtree")
+    @Description("The subtree below an internal node was discarded")
+    public static class KillSubtree extends StructureEvent {
+    }
+
+    @Name("moa.trees.AlternateCreated")
+    @Label("Alternate Tree Created")
+    public static class AlternateCreated extends StructureEvent {
+    }
+
+    @Name("moa.trees.AlternateSwitched")
+    @Label("Alternate Tree Switched")
+    public static class AlternateSwitched extends StructureEvent {
+    }
+
+    @Name("moa.trees.AlternatePruned")
+    @Label("Alternate Tree Pruned")
+    public static class AlternatePruned extends StructureEvent {
+    }
+}